@@ -35,6 +35,7 @@ source=terminology-server
 
 s3BucketLocation="snomed-international/authoring/versioned-content/"
 deltaArchiveFile="delta_archive.zip"
+convertedClassificationArchive="convertedClassificationArchive.zip"
 classifiedArchiveFile="classified_archive.zip"
 curlFlags="isS"
 commonParams="--cookie-jar cookies.txt --cookie cookies.txt -${curlFlags} --retry 0"
@@ -72,17 +73,7 @@ downloadDelta() {
 }
 
 classify() {
-  echo "Zipping up the converted files"
-  convertedArchive="convertedArchive.zip"
-  rm ${convertedArchive} || true
-  zip -r ${convertedArchive} ${converted_file_location}
-  
-  echo "Zipping up the converted files needed for classification"
-  convertedClassificationArchive="convertedClassificationArchive.zip"
-  rm ${convertedClassificationArchive} || true
-	shopt -s globstar
-  zip  ${convertedClassificationArchive} ${converted_file_location}/**/*Concept* ${converted_file_location}/**/*_Relationship* ${converted_file_location}/**/*OWL* ${converted_file_location}/**/*_cissccRefset_MRCMAttributeDomain*
-
+	#The files needed for classification are zipped up by the conversion itself
 	echo "Calling classification"
 	curl -sSi ${classifyUrl}/classification-service/classifications \
 		--cookie cookies.txt \
@@ -129,33 +120,11 @@ checkClassificationStatus() {
 }
 
 applyClassificationChanges() {
-	classificationOutputDir="classification_output"
-	mkdir ${classificationOutputDir} || true
-	rm ${classificationOutputDir}/*.txt || true
-	unzip -j -o ${classifiedArchiveFile} -d  ${classificationOutputDir}
-
-	#We know the names of the files to append first the relationship delta
-	sourceFile=$(find ${classificationOutputDir}/*Relationship_Delta*)
-	targetFile=$(find ${converted_file_location} -name *_Relationship_Delta*)
-
-	javaCmd="java -cp target/CdConversion.jar org.snomed.otf.cd.ApplyClassificationDelta ${sourceFile} ${targetFile}"
-	echo "Appending ${sourceFile} to ${targetFile} using ${javaCmd}"
+	#Every delta in the classified archive (Relationship, RelationshipConcreteValues...) is merged into 
+	#the converted delta of the same type, with rows the classifier returns replacing any with the same id
+	javaCmd="java -cp target/CdConversion.jar org.snomed.otf.cd.ApplyClassificationDelta ${classifiedArchiveFile} ${converted_file_location}"
+	echo "Merging ${classifiedArchiveFile} into ${converted_file_location} using ${javaCmd}"
 	${javaCmd}
-
-	#Now are we also appending the concrete values file, or does it not exist yet?
-	sourceFile=$(find ${classificationOutputDir}/*RelationshipConcreteValues_Delta*)
-	sourceFileRenamed=$(basename $sourceFile)
-	sourceFileRenamed=${sourceFileRenamed//Classification/INT}
-	targetFile=$(find ${converted_file_location} -name *RelationshipConcreteValues_Delta*)
-
-	if [ -z "${targetFile}" ]; then
-		newLocation="${converted_file_location}/SnomedCT_Export/RF2Release/Terminology/${sourceFileRenamed}"
-		echo "Copying ${sourceFile} to ${newLocation}"
-		cp ${sourceFile} ${newLocation}
-	else
-		echo "Appending ${sourceFile} to ${targetFile}"
-		tail -n +2 ${sourceFile} >> ${targetFile}
-	fi
 }
 
 
@@ -236,7 +205,8 @@ downloadpreviousPackage
 mkdir -p ${converted_file_location}
 rm -r ./${converted_file_location}/* || true
 echo "Performing Concrete Domain Conversion..."
-java -jar target/CdConversion.jar -s ${previousPackage} -d ${deltaArchiveFile}
+rm ${convertedClassificationArchive} || true
+java -jar target/CdConversion.jar -s ${previousPackage} -d ${deltaArchiveFile} -zc ${convertedClassificationArchive}
 classify
 applyClassificationChanges
 callSrs
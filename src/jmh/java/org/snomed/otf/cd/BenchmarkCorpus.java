@@ -0,0 +1,135 @@
+package org.snomed.otf.cd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Synthetic OWL axioms and RF2 rows for the benchmarks, generated from a seed so that every
+ * run sees the same corpus.  The mapped attribute density is the proportion of axioms that
+ * have something to convert, each of those having between one and three mapped attributes.
+ */
+class BenchmarkCorpus {
+
+	static final String OWL_HEADER = "id\teffectiveTime\tactive\tmoduleId\trefsetId\treferencedComponentId\towlExpression";
+
+	//As config.txt: attribute type, concrete attribute type, concrete type
+	static final String[][] ATTRIBUTES = {
+		{ "732944001", "1142135004", "decimal" },
+		{ "732946004", "1142136003", "decimal" },
+		{ "733723002", "1142137007", "decimal" },
+		{ "733724008", "1142138002", "decimal" },
+		{ "766952006", "1142139005", "integer" },
+		{ "766953001", "1142140007", "integer" },
+		{ "766954007", "1142141006", "integer" },
+		{ "774161007", "1142142004", "integer" },
+		{ "784276002", "1142143009", "integer" }
+	};
+
+	//Attributes that are left alone, with a typical value
+	private static final String[][] OTHER_ATTRIBUTES = {
+		{ "411116001", "421026006" },
+		{ "732943007", "387517004" },
+		{ "732945000", "258684004" },
+		{ "732947008", "732936001" },
+		{ "762949000", "387517004" },
+		{ "763032000", "732936001" }
+	};
+
+	private static final int NUMBER_CONCEPTS = 200;
+	private static final long FIRST_NUMBER_CONCEPT = 3445001L;
+	private static final long FIRST_CONCEPT = 322236009L;
+
+	final String[] concepts;
+	final String[] axioms;
+
+	BenchmarkCorpus (int count, double mappedDensity, long seed) {
+		Random random = new Random(seed);
+		concepts = new String[count];
+		axioms = new String[count];
+		for (int i = 0; i < count; i++) {
+			concepts[i] = Long.toString(FIRST_CONCEPT + i * 1000L);
+			axioms[i] = axiom(concepts[i], random.nextDouble() < mappedDensity, random);
+		}
+	}
+
+	private static String axiom(String concept, boolean mapped, Random random) {
+		StringBuilder sb = new StringBuilder("EquivalentClasses(:").append(concept)
+				.append(" ObjectIntersectionOf(:763158003 ");
+		clause(sb, OTHER_ATTRIBUTES[0][0], OTHER_ATTRIBUTES[0][1]);
+		sb.append(" ObjectSomeValuesFrom(:609096000 ObjectIntersectionOf(");
+		int others = 2 + random.nextInt(4);
+		int mappedCount = mapped ? 1 + random.nextInt(3) : 0;
+		for (int i = 0; i < others + mappedCount; i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			if (i < mappedCount) {
+				String[] attribute = ATTRIBUTES[random.nextInt(ATTRIBUTES.length)];
+				clause(sb, attribute[0], numberConcept(random.nextInt(NUMBER_CONCEPTS)));
+			} else {
+				String[] attribute = OTHER_ATTRIBUTES[1 + random.nextInt(OTHER_ATTRIBUTES.length - 1)];
+				clause(sb, attribute[0], attribute[1]);
+			}
+		}
+		return sb.append("))))").toString();
+	}
+
+	private static void clause(StringBuilder sb, String attribute, String value) {
+		sb.append("ObjectSomeValuesFrom(:").append(attribute).append(" :").append(value).append(')');
+	}
+
+	private static String numberConcept(int idx) {
+		return Long.toString(FIRST_NUMBER_CONCEPT + idx * 1000L);
+	}
+
+	/**
+	 * A conversion configured with the mapped attributes and every number concept the corpus uses
+	 */
+	static CdConversion createConversion() {
+		Map<String, String> attributeTypeMap = new HashMap<>();
+		Map<String, String> concreteTypeMap = new HashMap<>();
+		for (String[] attribute : ATTRIBUTES) {
+			attributeTypeMap.put(attribute[0], attribute[1]);
+			concreteTypeMap.put(attribute[1], attribute[2]);
+		}
+		Map<String, String> conceptNumberMap = new HashMap<>();
+		for (int i = 0; i < NUMBER_CONCEPTS; i++) {
+			conceptNumberMap.put(numberConcept(i), Integer.toString(i + 1));
+		}
+		CdConversion conversion = new CdConversion();
+		conversion.setConfig(attributeTypeMap, concreteTypeMap, conceptNumberMap);
+		return conversion;
+	}
+
+	String memberId(int idx) {
+		return new UUID(0x4d2L << 32 | idx, idx).toString();
+	}
+
+	String[] owlRow(int idx) {
+		return new String[] { memberId(idx), "20210131", "1", "900000000000207008", "733073007", concepts[idx], axioms[idx] };
+	}
+
+	/**
+	 * @return the axioms as an OWL refset file, with CRLF line endings as published
+	 */
+	byte[] owlRefsetFile() {
+		StringBuilder sb = new StringBuilder(OWL_HEADER).append("\r\n");
+		for (int i = 0; i < axioms.length; i++) {
+			sb.append(String.join("\t", owlRow(i))).append("\r\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return every nth row of the OWL refset, re-issued with a blank effective time as a classifier would
+	 */
+	byte[] classificationFile(int nth) {
+		StringBuilder sb = new StringBuilder(OWL_HEADER).append("\r\n");
+		for (int i = 0; i < axioms.length; i += nth) {
+			String[] row = owlRow(i);
+			row[CdConversion.IDX_EFFECTIVE_TIME] = "";
+			sb.append(String.join("\t", row)).append("\r\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,57 @@
+package org.snomed.otf.cd;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Per row cost of the OWL rewrite, with and without its validation.  Each invocation handles the next
+ * row of the corpus, so the scores are in rows per second.  Writing rows out is measured a whole file
+ * at a time, in RF2FileBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+	@Param({ "100000" })
+	int rows;
+
+	@Param({ "0.05", "0.5" })
+	double mappedDensity;
+
+	private BenchmarkCorpus corpus;
+	private CdConversion conversion;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void createCorpus() {
+		corpus = new BenchmarkCorpus(rows, mappedDensity, 42);
+		conversion = BenchmarkCorpus.createConversion();
+	}
+
+	private int nextRow() {
+		int row = next;
+		next = row + 1 == rows ? 0 : row + 1;
+		return row;
+	}
+
+	@Benchmark
+	public String modifyOWLIfRequired() {
+		int row = nextRow();
+		return conversion.modifyOWLIfRequired(corpus.concepts[row], corpus.axioms[row]);
+	}
+
+	/**
+	 * The checks use counts kept by the rewrite, so they're measured along with it
+	 */
+	@Benchmark
+	public boolean modifyAndValidate() {
+		int row = nextRow();
+		String modifiedOwl = conversion.modifyOWLIfRequired(corpus.concepts[row], corpus.axioms[row]);
+		return modifiedOwl == corpus.axioms[row] || conversion.validateBeforeAndAfter(corpus.concepts[row], corpus.axioms[row], modifiedOwl);
+	}
+}
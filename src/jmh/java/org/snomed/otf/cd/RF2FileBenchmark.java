@@ -0,0 +1,128 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Whole file costs: parsing an OWL refset with ArchiveLines, writing one with RF2FileWriter, and
+ * merging classification results into a delta with ApplyClassificationDelta.  The rows counter
+ * reports rows per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RF2FileBenchmark {
+
+	@Param({ "100000" })
+	int rows;
+
+	@Param({ "0.05", "0.5" })
+	double mappedDensity;
+
+	//Every nth row of the delta comes back from the classifier
+	@Param({ "10" })
+	int classifiedEvery;
+
+	private byte[] owlFile;
+	private String[][] owlRows;
+	private File written;
+	private byte[] classificationFile;
+	private File pristineDelta;
+	private File delta;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class RowCounter {
+		public long rows;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			rows = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void createCorpus() throws IOException {
+		BenchmarkCorpus corpus = new BenchmarkCorpus(rows, mappedDensity, 42);
+		owlFile = corpus.owlRefsetFile();
+		owlRows = new String[rows][];
+		for (int i = 0; i < rows; i++) {
+			owlRows[i] = corpus.owlRow(i);
+		}
+		written = File.createTempFile("cd-benchmark-written-", ".txt");
+		classificationFile = corpus.classificationFile(classifiedEvery);
+		pristineDelta = File.createTempFile("cd-benchmark-delta-", ".txt");
+		delta = File.createTempFile("cd-benchmark-merged-", ".txt");
+		Files.write(pristineDelta.toPath(), owlFile);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFiles() {
+		pristineDelta.delete();
+		delta.delete();
+		written.delete();
+	}
+
+	@Setup(Level.Invocation)
+	public void resetFiles() throws IOException {
+		//The merge replaces the delta, so each invocation needs the original back
+		Files.copy(pristineDelta.toPath(), delta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		//The writer appends, so it starts each time from an empty file
+		Files.deleteIfExists(written.toPath());
+	}
+
+	/**
+	 * The cursor as the conversion uses it, testing fields without creating Strings
+	 */
+	@Benchmark
+	public int scanRows(RowCounter counter) throws IOException {
+		ArchiveLines lines = new ArchiveLines(new ByteArrayInputStream(owlFile));
+		int active = 0;
+		while (lines.next()) {
+			if (lines.fieldEquals(CdConversion.IDX_ACTIVE, "1")) {
+				active++;
+			}
+			counter.rows++;
+		}
+		return active;
+	}
+
+	/**
+	 * Every row split into Strings, as for rows that are written out
+	 */
+	@Benchmark
+	public void splitRows(RowCounter counter, Blackhole blackhole) throws IOException {
+		ArchiveLines lines = new ArchiveLines(new ByteArrayInputStream(owlFile));
+		while (lines.next()) {
+			blackhole.consume(lines.getFields());
+			counter.rows++;
+		}
+	}
+
+	/**
+	 * Every row encoded and written out, with the writer closed so that the last of them reaches the file
+	 */
+	@Benchmark
+	public void writeRows(RowCounter counter) throws IOException {
+		try (RF2FileWriter writer = new RF2FileWriter(written.toPath())) {
+			for (String[] row : owlRows) {
+				writer.writeRow(row);
+			}
+		}
+		counter.rows += rows;
+	}
+
+	@Benchmark
+	public void applyClassificationDelta(RowCounter counter) throws IOException {
+		new ApplyClassificationDelta().process(() -> new ByteArrayInputStream(classificationFile), "benchmark", delta);
+		counter.rows += rows;
+	}
+}
@@ -1,135 +1,254 @@
 package org.snomed.otf.cd;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.HashSet;
-import java.util.Scanner;
-import java.util.Set;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+/**
+ * Merges classification results into the converted delta.  Given a single pair of files, rows
+ * in the existing delta with an id returned by the classifier are suppressed and the classifier's
+ * rows appended.  Given the classified archive and the converted output directory, this is done 
+ * for every delta file in the archive, matched to the converted file of the same component type.
+ */
 public class ApplyClassificationDelta {
-	
-	File classificationOutput;
+
+	private static final byte[] LINE_DELIMITER = CdConversion.LINE_DELIMITER.getBytes();
+	private static final String DELTA_MARKER = "_" + CdConversion.DELTA;
+	private static final String CLASSIFICATION_NAMESPACE = "Classification";
+	private static final String DEFAULT_TERMINOLOGY_DIR = "SnomedCT_Export/RF2Release/Terminology";
+
+	String classificationOutput;
 	File relationshipDelta;
-	File relationshipDeltaTmp;
-	Set<String> existingIds;
+	LongSet existingIds;
+	Set<String> existingNonSctIds;  //Anything the classifier returns that isn't an SCTID
+
+	/**
+	 * Opens the classification results afresh each time they're read through
+	 */
+	interface Source {
+		InputStream open() throws IOException;
+	}
 
 	public static void main(String[] args) throws IOException {
 		if (args.length != 2) {
-			exit ("Usage: ApplyClassificationDelta <classification output file> <existing relationship delta file>");
+			exit ("Usage: ApplyClassificationDelta <classification output file> <existing relationship delta file>\n" +
+					"   or: ApplyClassificationDelta <classified archive> <converted output directory>");
 		}
-		new ApplyClassificationDelta().process(args[0], args[1]);
-	}
-
-	private void process(String file1Str, String file2Str) throws IOException {
-		classificationOutput = checkFile(file1Str);
-		relationshipDelta = checkFile(file2Str);
-		
-		//Read through the classification results to find existing ids
-		recoverExistingIds();
-		
-		//Move the relationship delta to a temp location so we can recreate it
-		String origPath = relationshipDelta.getPath();
-		relationshipDeltaTmp = new File ( origPath + ".tmp");
-		relationshipDelta.renameTo(relationshipDeltaTmp);
-		relationshipDelta = new File (origPath);
-		
-		//Now read through the existing delta and suppress any with ids returned from the classifier
-		recreateDeltaWithIdsSuppressed();
-		
-		//And finally add the entire contents of the classifications
-		appendAllClassificationResults();
-		relationshipDeltaTmp.delete();
-	}
-
-	private void recoverExistingIds() throws IOException {
-		existingIds = new HashSet<>();
-		FileInputStream is = null;
-		Scanner sc = null;
-		try {
-			is = new FileInputStream(classificationOutput);
-			sc = new Scanner(is, "UTF-8");
-			while (sc.hasNextLine()) {
-				String[] items = sc.nextLine().split("\t");
-				if (items.length > 1 && items[0].length() > 5) {
-					existingIds.add(items[0]);
+		if (args[0].endsWith(".zip") && new File(args[1]).isDirectory()) {
+			mergeArchive(checkFile(args[0]), new File(args[1]));
+		} else {
+			File classificationFile = checkFile(args[0]);
+			new ApplyClassificationDelta().process(() -> new FileInputStream(classificationFile), classificationFile.getPath(), checkFile(args[1]));
+		}
+	}
+
+	/**
+	 * Pairs each delta file in the classified archive with the converted delta of the same component
+	 * type eg sct2_RelationshipConcreteValues, and merges the files in parallel, each file's classified
+	 * deltas one after another.  Where nothing has been converted for a component type, the first
+	 * classified delta is copied in as it is.
+	 */
+	private static void mergeArchive(File classifiedArchive, File outputDir) throws IOException {
+		List<Path> convertedDeltas;
+		try (Stream<Path> walk = Files.walk(outputDir.toPath())) {
+			convertedDeltas = walk.filter(Files::isRegularFile)
+					.filter(p -> p.getFileName().toString().contains(DELTA_MARKER))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+
+		try (final ZipFile zip = new ZipFile(classifiedArchive)) {
+			//Several entries may go to the same file, so each file's entries are merged in turn by one task
+			Map<Path, List<ZipEntry>> entriesByTarget = new LinkedHashMap<>();
+			Set<Path> newTargets = new HashSet<>();
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				final ZipEntry ze = entries.nextElement();
+				final String fileName = Paths.get(ze.getName()).getFileName().toString();
+				if (ze.isDirectory() || !fileName.contains(DELTA_MARKER)) {
+					continue;
+				}
+				String componentType = fileName.substring(0, fileName.indexOf(DELTA_MARKER));
+				Path existing = findDelta(convertedDeltas, componentType);
+				Path target = existing != null ? existing : newDeltaLocation(outputDir.toPath(), convertedDeltas, componentType, fileName);
+				if (existing == null) {
+					newTargets.add(target);
 				}
+				entriesByTarget.computeIfAbsent(target, t -> new ArrayList<>()).add(ze);
 			}
-			// note that Scanner suppresses exceptions
-			if (sc.ioException() != null) {
-				throw sc.ioException();
+
+			List<Callable<Void>> merges = new ArrayList<>();
+			for (Map.Entry<Path, List<ZipEntry>> group : entriesByTarget.entrySet()) {
+				final Path target = group.getKey();
+				merges.add(() -> {
+					//The first entry for a new file is copied in, and any others merged into it
+					boolean isNew = newTargets.contains(target);
+					for (ZipEntry ze : group.getValue()) {
+						String fileName = Paths.get(ze.getName()).getFileName().toString();
+						if (isNew) {
+							isNew = false;
+							out("Copying " + fileName + " to " + target);
+							Files.createDirectories(target.getParent());
+							try (InputStream is = zip.getInputStream(ze)) {
+								Files.copy(is, target);
+							}
+						} else {
+							new ApplyClassificationDelta().process(() -> zip.getInputStream(ze), fileName, target.toFile());
+						}
+					}
+					return null;
+				});
 			}
-		} finally {
-			if (is != null) {
-				is.close();
+
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(merges.size(), Runtime.getRuntime().availableProcessors())));
+			try {
+				for (Future<Void> merge : pool.invokeAll(merges)) {
+					merge.get();
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Failed to merge classification results from " + classifiedArchive, e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted merging classification results", e);
+			} finally {
+				pool.shutdownNow();
 			}
-			if (sc != null) {
-				sc.close();
+		}
+	}
+
+	private static Path findDelta(List<Path> convertedDeltas, String componentType) {
+		for (Path delta : convertedDeltas) {
+			if (delta.getFileName().toString().startsWith(componentType + DELTA_MARKER)) {
+				return delta;
 			}
 		}
-		out("Read " + existingIds.size() + " exisiting ids from " + classificationOutput);
+		return null;
+	}
+
+	/**
+	 * A new file goes alongside the converted Relationship delta, taking its naming after the
+	 * component type, eg _INT_20210131.txt.  Failing that, the classifier's name is used with the
+	 * INT namespace, in the standard terminology folder.
+	 */
+	private static Path newDeltaLocation(Path outputDir, List<Path> convertedDeltas, String componentType, String classifiedName) {
+		Path sibling = findDelta(convertedDeltas, "sct2_Relationship");
+		if (sibling != null) {
+			String siblingName = sibling.getFileName().toString();
+			return sibling.resolveSibling(componentType + siblingName.substring(siblingName.indexOf(DELTA_MARKER)));
+		}
+		return outputDir.resolve(DEFAULT_TERMINOLOGY_DIR).resolve(classifiedName.replace(CLASSIFICATION_NAMESPACE, "INT"));
 	}
-	
-	private void recreateDeltaWithIdsSuppressed() throws FileNotFoundException {
-		Scanner sc = new Scanner(relationshipDeltaTmp);
-		PrintWriter pw = new PrintWriter(relationshipDelta);
+
+	void process(Source classification, String classificationName, File delta) throws IOException {
+		classificationOutput = classificationName;
+		relationshipDelta = delta;
+
+		//Read through the classification results to find existing ids.  The rows themselves
+		//are read again when they're appended, rather than being held on to
+		try (InputStream is = classification.open()) {
+			recoverExistingIds(is);
+		}
+
+		//Now write the existing delta with any ids returned from the classifier suppressed,
+		//followed by the classification results, then move that into place
+		File merged = new File(relationshipDelta.getPath() + ".tmp");
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(merged), 64 * 1024)) {
+			recreateDeltaWithIdsSuppressed(out);
+			try (InputStream is = classification.open()) {
+				appendAllClassificationResults(is, out);
+			}
+		} catch (IOException e) {
+			merged.delete();
+			throw e;
+		}
+		Files.move(merged.toPath(), relationshipDelta.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void recoverExistingIds(InputStream is) throws IOException {
+		existingIds = new LongSet();
+		existingNonSctIds = new HashSet<>();
+		ArchiveLines lines = new ArchiveLines(is);
+		while (lines.next()) {
+			if (hasSeveralFields(lines) && lines.getFieldEnd(0) - lines.getFieldStart(0) > 5) {
+				addExistingId(lines);
+			}
+		}
+		out("Read " + (existingIds.size() + existingNonSctIds.size()) + " exisiting ids from " + classificationOutput);
+	}
+
+	/**
+	 * @return true if the row has a non-empty field after the first, as splitting it would find
+	 */
+	private boolean hasSeveralFields(ArchiveLines lines) {
+		for (int idx = lines.getFieldCount() - 1; idx > 0; idx--) {
+			if (lines.getFieldEnd(idx) > lines.getFieldStart(idx)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void addExistingId(ArchiveLines lines) {
+		long sctId = lines.getSctid(0);
+		if (sctId == SctidMap.NOT_AN_SCTID) {
+			existingNonSctIds.add(lines.getField(0));
+		} else {
+			existingIds.add(sctId);
+		}
+	}
+
+	private boolean isExistingId(ArchiveLines lines) {
+		long sctId = lines.getSctid(0);
+		if (sctId == SctidMap.NOT_AN_SCTID) {
+			return !existingNonSctIds.isEmpty() && existingNonSctIds.contains(lines.getField(0));
+		}
+		return existingIds.contains(sctId);
+	}
+
+	private void recreateDeltaWithIdsSuppressed(OutputStream out) throws IOException {
 		int suppressedCount = 0;
-		try {
-			while (sc.hasNextLine()) {
-				String s = sc.nextLine();
-				String[] items = s.split("\t");
+		try (InputStream is = new FileInputStream(relationshipDelta)) {
+			ArchiveLines lines = new ArchiveLines(is);
+			while (lines.next()) {
 				//If we DON'T have this line coming back from the classifier,
 				//write it to the file
-				if (!existingIds.contains(items[0])) {
-					pw.write(s + "\r\n");
+				if (!isExistingId(lines)) {
+					writeLine(lines, out);
 				} else {
 					suppressedCount++;
 				}
 			}
-			pw.flush();
-		} finally {
-			if (pw != null) {
-				pw.close();
-			}
-			if (sc != null) {
-				sc.close();
-			}
 		}
 		out("Suppressed " + suppressedCount + " rows from " + relationshipDelta);
 	}
-	
-	private void appendAllClassificationResults() throws FileNotFoundException {
-		Scanner sc = new Scanner(classificationOutput);
-		PrintWriter pw = new PrintWriter(new FileOutputStream(relationshipDelta, true)); //Append
-		int rowsAppended = 0;
-		try {
-			boolean isFirstLine = true;
-			while (sc.hasNextLine()) {
-				String s = sc.nextLine();
-				if (isFirstLine) {
-					isFirstLine = false;
-				} else {
-					pw.write(s + "\r\n");
-					rowsAppended++;
-				}
-			}
-			pw.flush();
-		} finally {
-			if (pw != null) {
-				pw.close();
-			}
-			if (sc != null) {
-				sc.close();
+
+	private void appendAllClassificationResults(InputStream is, OutputStream out) throws IOException {
+		int appendedCount = 0;
+		ArchiveLines lines = new ArchiveLines(is);
+		//Everything but the header is appended
+		if (lines.next()) {
+			while (lines.next()) {
+				writeLine(lines, out);
+				appendedCount++;
 			}
 		}
-		out("Appended " + rowsAppended + " rows ");
+		out("Appended " + appendedCount + " rows to " + relationshipDelta);
+	}
 
+	private static void writeLine(ArchiveLines lines, OutputStream out) throws IOException {
+		out.write(lines.getBuffer(), lines.getLineStart(), lines.getLineEnd() - lines.getLineStart());
+		out.write(LINE_DELIMITER);
 	}
 
-	private File checkFile(String fileStr) {
+	private static File checkFile(String fileStr) {
 		File file = new File(fileStr);
 		if (!file.isFile() || !file.canRead()) {
 			exit ("Cannot read from " + fileStr);
@@ -141,7 +260,7 @@ public class ApplyClassificationDelta {
 		out(msg);
 		System.exit(-1);
 	}
-	
+
 	public static void out(String msg) {
 		System.out.println(msg);
 	}
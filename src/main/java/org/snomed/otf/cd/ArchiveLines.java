@@ -2,52 +2,256 @@ package org.snomed.otf.cd;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
- * Supporting class to turn an RF2 File into a collection that can be iterated over, with
- * each line split into an array of strings for further processing.
+ * Supporting class to read an RF2 File a row at a time.  Each row is held as bytes in a
+ * reusable buffer with the offsets of its fields recorded, so callers can test columns
+ * against constant values and only create Strings for the rows they actually need.
+ *
+ * Fields beyond the end of a short row read as missing - empty, and not an SCTID - rather
+ * than whatever the previous row left at those offsets.
+ *
+ * It can also be iterated over with each line split into an array of strings, as before.
  */
 class ArchiveLines implements Iterable<String[]> {
-	
+
 	public static String FIELD_DELIMITER = "\t";
-	
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
 	InputStream is;
-	BufferedReader br;
-	String nextLine;
-	
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private int position = 0;  //Start of the data not yet returned as a line
+	private int limit = 0;     //End of the data read into the buffer
+	private boolean endOfStream = false;
+
+	private int lineStart, lineEnd;
+	private int[] fieldEnds = new int[16];
+	private int fieldCount = 0;
+
 	ArchiveLines (InputStream is) {
 		this.is = is;
 	}
+
+	/**
+	 * Moves on to the next row.  Lines may be terminated with \n, \r\n or \r
+	 * @return false once there are no more rows
+	 */
+	boolean next() throws IOException {
+		int scan = position;
+		while (true) {
+			while (scan < limit && buffer[scan] != '\n' && buffer[scan] != '\r') {
+				scan++;
+			}
+			if (scan < limit) {
+				//We need to see the byte after a \r to know if it's followed by a \n
+				if (buffer[scan] == '\r' && scan + 1 == limit && !endOfStream) {
+					scan -= fill();
+					continue;
+				}
+				lineStart = position;
+				lineEnd = scan;
+				position = scan + (buffer[scan] == '\r' && scan + 1 < limit && buffer[scan + 1] == '\n' ? 2 : 1);
+				break;
+			} else if (endOfStream) {
+				if (position == limit) {
+					fieldCount = 0;
+					return false;
+				}
+				//Last line has no terminator
+				lineStart = position;
+				lineEnd = limit;
+				position = limit;
+				break;
+			}
+			scan -= fill();
+		}
+		splitFields();
+		return true;
+	}
+
+	/**
+	 * Reads more of the stream into the buffer, moving the unread data to the start first
+	 * @return how far the unread data has moved back
+	 */
+	private int fill() throws IOException {
+		int shift = position;
+		if (shift > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int read = is.read(buffer, limit, buffer.length - limit);
+		if (read == -1) {
+			endOfStream = true;
+		} else {
+			limit += read;
+		}
+		return shift;
+	}
+
+	private void splitFields() {
+		fieldCount = 0;
+		for (int i = lineStart; i < lineEnd; i++) {
+			if (buffer[i] == '\t') {
+				addFieldEnd(i);
+			}
+		}
+		addFieldEnd(lineEnd);
+	}
+
+	private void addFieldEnd(int end) {
+		if (fieldCount == fieldEnds.length) {
+			fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+		}
+		fieldEnds[fieldCount++] = end;
+	}
+
+	int getFieldCount() {
+		return fieldCount;
+	}
+
+	boolean hasField(int idx) {
+		return idx < fieldCount;
+	}
+
+	/**
+	 * @return where the field starts, or the end of the line if the row doesn't have it
+	 */
+	int getFieldStart(int idx) {
+		if (idx >= fieldCount) {
+			return lineEnd;
+		}
+		return idx == 0 ? lineStart : fieldEnds[idx - 1] + 1;
+	}
+
+	/**
+	 * @return where the field ends, or the end of the line if the row doesn't have it
+	 */
+	int getFieldEnd(int idx) {
+		return idx < fieldCount ? fieldEnds[idx] : lineEnd;
+	}
+
+	int getLineStart() {
+		return lineStart;
+	}
+
+	int getLineEnd() {
+		return lineEnd;
+	}
+
+	/**
+	 * @return the buffer holding the current row.  Only valid until next() is called.
+	 */
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return true if the field exists and holds exactly the given ASCII value eg an SCTID
+	 */
+	boolean fieldEquals(int idx, String value) {
+		if (idx >= fieldCount) {
+			return false;
+		}
+		int start = getFieldStart(idx);
+		if (getFieldEnd(idx) - start != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (buffer[start + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the field parsed as an SCTID, or SctidMap.NOT_AN_SCTID if it isn't one or is missing
+	 */
+	long getSctid(int idx) {
+		if (idx >= fieldCount) {
+			return SctidMap.NOT_AN_SCTID;
+		}
+		int start = getFieldStart(idx);
+		int end = fieldEnds[idx];
+		if (end <= start || end - start > 18 || buffer[start] == '0') {
+			return SctidMap.NOT_AN_SCTID;
+		}
+		long sctId = 0;
+		for (int i = start; i < end; i++) {
+			byte b = buffer[i];
+			if (b < '0' || b > '9') {
+				return SctidMap.NOT_AN_SCTID;
+			}
+			sctId = sctId * 10 + (b - '0');
+		}
+		return sctId;
+	}
+
+	/**
+	 * @return the field, or null if the row doesn't have it
+	 */
+	String getField(int idx) {
+		if (idx >= fieldCount) {
+			return null;
+		}
+		int start = getFieldStart(idx);
+		return new String(buffer, start, fieldEnds[idx] - start, StandardCharsets.UTF_8);
+	}
+
+	String getLine() {
+		return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the current row split into Strings, exactly as String.split(FIELD_DELIMITER)
+	 * would, so trailing empty fields are dropped.
+	 */
+	String[] getFields() {
+		if (fieldCount == 1) {
+			return new String[] { getLine() };
+		}
+		int count = fieldCount;
+		while (count > 0 && getFieldStart(count - 1) == fieldEnds[count - 1]) {
+			count--;
+		}
+		String[] fields = new String[count];
+		for (int i = 0; i < count; i++) {
+			fields[i] = getField(i);
+		}
+		return fields;
+	}
+
 	@Override
 	public Iterator<String[]> iterator() {
-		//Not putting this in a try resource block otherwise it will close the stream on completion and we've got more to read!
-		br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-		try {
-			nextLine = br.readLine();
-		} catch (Exception e) {}
-		
 		return new Iterator<String[]>() {
+			Boolean hasNext;
+
 			@Override
 			public boolean hasNext() {
-				return nextLine != null;
+				if (hasNext == null) {
+					try {
+						hasNext = ArchiveLines.this.next();
+					} catch (IOException e) {
+						throw new UncheckedIOException("Failed to read RF2 row", e);
+					}
+				}
+				return hasNext;
 			}
 
 			@Override
 			public String[] next() {
-				if (nextLine != null) {
-					String thisLine = nextLine;
-					try {
-						nextLine = br.readLine();
-					} catch (IOException e) {
-						e.printStackTrace();
-						nextLine = null;
-						return null;
-					}
-					return thisLine.split(FIELD_DELIMITER);
-				} else {
-					return null;
+				if (!hasNext()) {
+					throw new NoSuchElementException();
 				}
+				hasNext = null;
+				return getFields();
 			}
 		};
 	}
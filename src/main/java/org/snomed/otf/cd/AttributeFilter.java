@@ -0,0 +1,119 @@
+package org.snomed.otf.cd;
+
+import java.util.*;
+
+/**
+ * Aho-Corasick automaton over the attribute types being replaced, so that a row can be
+ * checked for all of them in a single pass over its characters.  Each attribute is matched
+ * as it would appear at the start of a clause ie "(:732944001 " so a row that's rejected
+ * cannot contain anything that would be converted.
+ */
+class AttributeFilter {
+
+	//The only characters that can appear in a pattern, everything else returns to the root
+	private static final String ALPHABET = "0123456789(: ";
+
+	private final int[][] transitions;
+	private final boolean[] accepting;
+
+	AttributeFilter (Collection<String> attributeTypes) {
+		//Build the trie first, with -1 where there is no edge
+		List<int[]> trie = new ArrayList<>();
+		List<Boolean> terminal = new ArrayList<>();
+		trie.add(newState());
+		terminal.add(false);
+		for (String attributeType : attributeTypes) {
+			int state = 0;
+			for (char c : ("(:" + attributeType + " ").toCharArray()) {
+				int symbol = symbol(c);
+				if (trie.get(state)[symbol] == -1) {
+					trie.get(state)[symbol] = trie.size();
+					trie.add(newState());
+					terminal.add(false);
+				}
+				state = trie.get(state)[symbol];
+			}
+			terminal.set(state, true);
+		}
+
+		//Then fill in the failure transitions breadth first so every state has a full row
+		transitions = trie.toArray(new int[trie.size()][]);
+		accepting = new boolean[transitions.length];
+		int[] failure = new int[transitions.length];
+		Deque<Integer> queue = new ArrayDeque<>();
+		for (int symbol = 0; symbol < ALPHABET.length(); symbol++) {
+			int next = transitions[0][symbol];
+			if (next == -1) {
+				transitions[0][symbol] = 0;
+			} else {
+				failure[next] = 0;
+				queue.add(next);
+			}
+		}
+		for (int state = 0; state < transitions.length; state++) {
+			accepting[state] = terminal.get(state);
+		}
+		while (!queue.isEmpty()) {
+			int state = queue.poll();
+			accepting[state] |= accepting[failure[state]];
+			for (int symbol = 0; symbol < ALPHABET.length(); symbol++) {
+				int next = transitions[state][symbol];
+				if (next == -1) {
+					transitions[state][symbol] = transitions[failure[state]][symbol];
+				} else {
+					failure[next] = transitions[failure[state]][symbol];
+					queue.add(next);
+				}
+			}
+		}
+	}
+
+	private static int[] newState() {
+		int[] state = new int[ALPHABET.length()];
+		Arrays.fill(state, -1);
+		return state;
+	}
+
+	private static int symbol(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		switch (c) {
+			case '(' : return 10;
+			case ':' : return 11;
+			case ' ' : return 12;
+			default : return -1;
+		}
+	}
+
+	/**
+	 * @return true if the text contains at least one of the attribute types
+	 */
+	boolean isCandidate(CharSequence text) {
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int symbol = symbol(text.charAt(i));
+			state = symbol == -1 ? 0 : transitions[state][symbol];
+			if (accepting[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * As isCandidate(CharSequence) for UTF-8 bytes.  All the symbols are ASCII, so any
+	 * multi-byte character simply returns to the root, just as it would when decoded.
+	 */
+	boolean isCandidate(byte[] bytes, int start, int end) {
+		int state = 0;
+		for (int i = start; i < end; i++) {
+			int symbol = bytes[i] < 0 ? -1 : symbol((char) bytes[i]);
+			state = symbol == -1 ? 0 : transitions[state][symbol];
+			if (accepting[state]) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
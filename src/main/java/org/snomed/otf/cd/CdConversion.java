@@ -1,14 +1,15 @@
 package org.snomed.otf.cd;
 
 import java.io.*;
-import java.math.BigInteger;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.*;
 
 /**
@@ -25,24 +26,56 @@ public class CdConversion
 	public static String SCTID_IS_A = "116680003"; // |Is a (attribute)|
 	public static String SNAPSHOT = "Snapshot";
 	public static String DELTA = "Delta";
-	//Nested regex to pick out the clause, and separate out the two SCTIDS involved
+	public static String RELATIONSHIP_PREFIX = "sct2_Relationship_";
+	public static String DESCRIPTION_PREFIX = "sct2_Description_";
+	public static String OWL_PREFIX = "sct2_sRefset_OWLExpression";
+	public static String OUTPUT_DIR = "output";
+	//Nested regex to pick out the clause, and separate out the two SCTIDS involved.
+	//modifyOWLIfRequired scans for exactly this by hand, since it's run on every axiom
 	public static String REGEX = "(ObjectSomeValuesFrom\\(:(\\d{6,18}) :(\\d{6,18})\\))";
+	private static String CLAUSE_START = "ObjectSomeValuesFrom(:";
+	private static int MIN_SCTID_LENGTH = 6, MAX_SCTID_LENGTH = 18;
+	private static long OWL_RANGE_SIZE = 16 * 1024 * 1024;  //Of an OWL file converted in parallel, at most
 	private File dependency;
 	private File extension;
 	private File delta;
 	private File attributeMapConfig;
-	private Map<String, String> conceptNumberMap = new HashMap<>();
-	private Map<String, String> attributeTypeMap = new HashMap<>();
-	private Map<String, String> concreteTypeMap = new HashMap<>();
-	private Map<String, String[]> outputOWLMap = new HashMap<>();
-	private Map<Path, PrintWriter> printWriterMap = new HashMap<>();
-	private Pattern pattern = Pattern.compile(REGEX);
+	private SctidMap<String> conceptNumberMap = new SctidMap<>();
+	private SctidMap<String> attributeTypeMap = new SctidMap<>();
+	private SctidMap<String> concreteTypeMap = new SctidMap<>();
+	private SpillingRowStore outputOWLMap;
+	private Map<Path, RF2FileWriter> writerMap = new ConcurrentHashMap<>();
+	private PipelinedLineWriter lineWriter;
+	private ThreadLocal<Rewrite> rewrite = ThreadLocal.withInitial(Rewrite::new);  //Axioms may be converted on several threads
+	private boolean collectViolations = false;
+	private boolean exitOnFailure = true;  //Otherwise failures are thrown, for a process that carries on
+	private List<String> violations = new ArrayList<>();
+	private AttributeFilter attributeFilter = new AttributeFilter(Collections.<String>emptySet());
+	private int preFilterSkipped = 0;
 	private int conceptsRemodelled = 0;
 	private boolean cdiChangesOnly = false;
+	private boolean affectedOnly = false;
+	private boolean generateInferred = false;
+	private InferredRelationshipChanges inferredChanges;
+	private LongSet selectedConcepts;  //Whose axioms are to be converted from the snapshot index
+	private List<String> selectedIds;
+	private int workers = 1;
+	private File indexDir;
+	private long owlMemoryBudget = Long.MAX_VALUE;
+	private String outputDir = OUTPUT_DIR;
+	private boolean archiveOnly = false;  //If the files are only written into the archives
+	private DependencyBaseline baseline;  //The dependency as already read for all the extensions being converted
+	private boolean buildingBaseline = false;
+	private LongSet baselineValuesUsed;
+	private RF2Archiver archiver = new RF2Archiver();
+	private ConversionMetrics metrics = new ConversionMetrics(true);
+	private File metricsReport;
+	private int progressSeconds = 0;
 	
 	private DateTimeFormatter dtFormatter = DateTimeFormatter.ofPattern("yyyyMMdd");
 	private String today;
 	private Path owlPath;
+	private Path relationshipPath, concreteValuesPath;
 	
 	enum ArchiveType{ SNAPSHOT, EXTENSION, DELTA };
 	ArchiveType latestArchiveType;  //What's the most specific archive we've been passed#'
@@ -53,23 +86,77 @@ public class CdConversion
 		info("=========================================================");
 	
 		if (args.length < 1) {
-			exit("Usage: java -jar CdConversion -s <snapshot dependency archive> [-e <snapshot extension archive>] [-d <delta archive>] [ -o only output modified axioms] [-c <config mapping file> or config.txt is used]");
+			exit("Usage: java -jar CdConversion -s <snapshot dependency archive> [-e <snapshot extension archive> [-d <delta archive>]]... [ -o only output modified axioms] [-a only convert axioms affected by the delta] [-r <concept or member ids, or a file of them, to convert>] [-t <worker threads>] [-i <number concept index directory>] [-m <MB of converted axioms to hold in memory>] [-z <output archive>] [-zc <classification archive> [-zf <classification file globs>]] [-mr <metrics report .json or .csv>] [-pr <seconds between progress lines>] [-v collect validation failures rather than stopping] [-g generate inferred relationship changes] [-serve <port to convert posted deltas on>] [-c <config mapping file> or config.txt is used]");
 		}
 		
+		ConversionMetrics.resetPeakHeap();
 		CdConversion app = new CdConversion();
+		List<File> extensions = new ArrayList<>();
+		List<File> extensionDeltas = new ArrayList<>();  //Null where an extension has no delta
+		File outputArchive = null;
+		File classificationArchive = null;
+		Integer servePort = null;
+		String classificationFilter = RF2Archiver.CLASSIFICATION_FILTER;
 		for (int x=0; x< args.length; x++) {
 			String thisArg = args[x];
 			if (thisArg.equals("-s")) {
 				app.dependency = validateFile(args[x+1]);
 			} else if (thisArg.equals("-e")) {
-				app.extension = validateFile(args[x+1]);
+				extensions.add(validateFile(args[x+1]));
+				extensionDeltas.add(null);
 			} else if (thisArg.equals("-d")) {
-				app.delta = validateFile(args[x+1]);
+				//A delta applies to the extension before it, if there is one
+				if (extensions.isEmpty() || extensionDeltas.get(extensions.size() - 1) != null) {
+					if (app.delta != null) {
+						exit ("Only one delta can be given for the dependency or each extension");
+					}
+					app.delta = validateFile(args[x+1]);
+				} else {
+					extensionDeltas.set(extensions.size() - 1, validateFile(args[x+1]));
+				}
 			} else if (thisArg.equals("-c")) {
 				app.attributeMapConfig = validateFile(args[x+1]);
 			} else if (thisArg.equals("-o")) {
 				app.cdiChangesOnly = true;
+			} else if (thisArg.equals("-a")) {
+				app.affectedOnly = true;
+			} else if (thisArg.equals("-r")) {
+				app.selectAxioms(args[x+1]);
+			} else if (thisArg.equals("-t")) {
+				app.workers = Integer.parseInt(args[x+1]);
+			} else if (thisArg.equals("-i")) {
+				app.indexDir = new File(args[x+1]);
+			} else if (thisArg.equals("-m")) {
+				app.owlMemoryBudget = Long.parseLong(args[x+1]) * 1024 * 1024;
+			} else if (thisArg.equals("-z")) {
+				outputArchive = new File(args[x+1]);
+			} else if (thisArg.equals("-zc")) {
+				classificationArchive = new File(args[x+1]);
+			} else if (thisArg.equals("-zf")) {
+				classificationFilter = args[x+1];
+			} else if (thisArg.equals("-mr")) {
+				app.metricsReport = new File(args[x+1]);
+			} else if (thisArg.equals("-pr")) {
+				app.progressSeconds = Integer.parseInt(args[x+1]);
+			} else if (thisArg.equals("-v")) {
+				app.collectViolations = true;
+			} else if (thisArg.equals("-g")) {
+				app.generateInferred = true;
+			} else if (thisArg.equals("-serve")) {
+				servePort = Integer.parseInt(args[x+1]);
+			}
+		}
+		
+		if (extensions.size() == 1) {
+			app.extension = extensions.get(0);
+			if (extensionDeltas.get(0) != null) {
+				if (app.delta != null) {
+					exit ("Only one delta can be given for the dependency or each extension");
+				}
+				app.delta = extensionDeltas.get(0);
 			}
+		} else if (extensions.size() > 1 && app.delta != null) {
+			exit ("With more than one extension, each delta must follow the extension it applies to");
 		}
 		
 		if (app.dependency == null) {
@@ -86,6 +173,14 @@ public class CdConversion
 			app.latestArchiveType = ArchiveType.DELTA;
 		}
 		
+		if (app.affectedOnly && (app.delta == null || app.indexDir == null)) {
+			exit ("Converting only the axioms affected by a delta needs both the delta (-d) and an index directory (-i)");
+		}
+		
+		if (app.selectedConcepts != null && app.indexDir == null) {
+			exit ("Converting the axioms of selected concepts needs an index directory (-i)");
+		}
+		
 		if (app.attributeMapConfig == null) {
 			File defaultConfig = new File("config.txt");
 			if (defaultConfig.canRead()) {
@@ -95,6 +190,34 @@ public class CdConversion
 			}
 		}
 		
+		if (servePort != null) {
+			if (!extensions.isEmpty() || app.delta != null || app.affectedOnly || app.selectedConcepts != null || 
+					outputArchive != null || classificationArchive != null || app.metricsReport != null) {
+				exit ("Serving conversions takes just the dependency archive (-s), deltas are posted to the server");
+			}
+			app.init();
+			new ConversionServer(app, servePort).start();
+			return;
+		}
+		
+		if (extensions.size() > 1) {
+			if (app.affectedOnly || app.selectedConcepts != null || outputArchive != null || classificationArchive != null || app.metricsReport != null) {
+				exit ("-a, -r, -z, -zc and -mr can only be used with a single extension");
+			}
+			app.init();
+			app.convertExtensions(extensions, extensionDeltas);
+			return;
+		}
+		
+		if (outputArchive != null) {
+			//Only the archive is written, not the output folder
+			app.archiveOnly = true;
+			app.archiver.addArchive(outputArchive, null);
+		}
+		if (classificationArchive != null) {
+			app.archiver.addArchive(classificationArchive, classificationFilter);
+		}
+		
 		app.init();
 		app.runConversion();
 	}
@@ -106,12 +229,11 @@ public class CdConversion
 			String line;
 			while ((line = br.readLine()) != null) {
 				String[] types = line.split(FIELD_DELIMITER);
-				//Check we have an integer here
-				new BigInteger(types[0]);
-				new BigInteger(types[1]);
-				attributeTypeMap.put(types[0], types[1]);
-				concreteTypeMap.put(types[1], types[2]);
+				//Parsing checks we have an SCTID here
+				attributeTypeMap.put(SctidMap.parseSctid(types[0]), types[1]);
+				concreteTypeMap.put(SctidMap.parseSctid(types[1]), types[2]);
 			}
+			initAttributeFilter();
 		} catch (Exception e) {
 			throw new IllegalStateException ("Unable to read three column (old new type), tab delimited attribute config: " + attributeMapConfig, e);
 		}
@@ -121,74 +243,661 @@ public class CdConversion
 	 * Used only to set values for testing
 	 */
 	protected void setConfig (Map<String, String> attributeTypeMap, Map<String, String> concreteTypeMap, Map<String, String> conceptNumberMap) {
-		this.attributeTypeMap = attributeTypeMap;
-		this.concreteTypeMap = concreteTypeMap;
-		this.conceptNumberMap = conceptNumberMap;
+		this.attributeTypeMap = toSctidMap(attributeTypeMap);
+		this.concreteTypeMap = toSctidMap(concreteTypeMap);
+		this.conceptNumberMap = toSctidMap(conceptNumberMap);
+		initAttributeFilter();
+	}
+	
+	/**
+	 * Reads and converts the dependency once, then converts each extension, with its delta 
+	 * if it has one, in parallel into its own folder of the output directory.
+	 */
+	private void convertExtensions(List<File> extensions, List<File> extensionDeltas) throws IOException {
+		info("Reading " + dependency.getName() + " once for " + extensions.size() + " extensions");
+		try (DependencyBaseline dependencyBaseline = buildBaseline()) {
+			List<CdConversion> layers = new ArrayList<>();
+			for (int i = 0; i < extensions.size(); i++) {
+				CdConversion layer = newLayer(extensions.get(i), extensionDeltas.get(i));
+				layer.baseline = dependencyBaseline;
+				layer.outputDir = OUTPUT_DIR + "/" + extensions.get(i).getName().replaceAll("[.]zip$", "");
+				layers.add(layer);
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(layers.size(), Runtime.getRuntime().availableProcessors()));
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (CdConversion layer : layers) {
+					futures.add(pool.submit(() -> {
+						layer.runConversion();
+						return null;
+					}));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					try {
+						futures.get(i).get();
+						info(extensions.get(i).getName() + " converted to " + layers.get(i).outputDir);
+					} catch (ExecutionException e) {
+						throw asIOException(e.getCause());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while converting extensions", e);
+					}
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		metrics.logPeakHeap();
+	}
+	
+	/**
+	 * @return the dependency's numbers and converted axioms, to be shared by conversions built on it
+	 */
+	DependencyBaseline buildBaseline() throws IOException {
+		CdConversion dependencyOnly = newLayer(null, null);
+		//Nothing is output for the dependency, as if it had an extension
+		dependencyOnly.latestArchiveType = ArchiveType.EXTENSION;
+		dependencyOnly.buildingBaseline = true;
+		dependencyOnly.convert();
+		return dependencyOnly.baseline;
+	}
+	
+	/**
+	 * Converts a delta of the dependency, starting from its baseline, into the given archive.
+	 * Validation failures are collected rather than ending the process.  Other requests may be
+	 * converted at the same time, so the process's peak heap says nothing about this one.
+	 * @return the validation failures, whose axioms were output unconverted
+	 */
+	List<String> convertDelta(DependencyBaseline dependencyBaseline, File delta, File outputArchive) throws IOException {
+		CdConversion layer = newLayer(null, delta);
+		layer.baseline = dependencyBaseline;
+		layer.collectViolations = true;
+		layer.exitOnFailure = false;
+		layer.archiveOnly = true;
+		layer.archiver.addArchive(outputArchive, null);
+		boolean converted = false;
+		try {
+			layer.runConversion();
+			converted = true;
+		} finally {
+			//The process carries on, so nothing can be left for it to clean up on exit
+			if (!converted) {
+				layer.abandon();
+			}
+		}
+		return layer.getViolations();
+	}
+	
+	/**
+	 * Used only to set up a dependency for testing
+	 */
+	static CdConversion forDependency(File dependency, File attributeMapConfig) {
+		CdConversion app = new CdConversion();
+		app.dependency = dependency;
+		app.attributeMapConfig = attributeMapConfig;
+		app.init();
+		return app;
+	}
+	
+	File getDependency() {
+		return dependency;
+	}
+	
+	/**
+	 * @return a conversion of the given extension and delta with the same settings as this one
+	 */
+	private CdConversion newLayer(File extension, File delta) {
+		CdConversion layer = new CdConversion();
+		//Part of this run, or one of a server's, so not the whole of the process's peak heap
+		layer.metrics = new ConversionMetrics(false);
+		layer.dependency = dependency;
+		layer.extension = extension;
+		layer.delta = delta;
+		layer.latestArchiveType = delta != null ? ArchiveType.DELTA : ArchiveType.EXTENSION;
+		layer.attributeMapConfig = attributeMapConfig;
+		layer.cdiChangesOnly = cdiChangesOnly;
+		layer.generateInferred = generateInferred;
+		layer.collectViolations = collectViolations;
+		layer.workers = workers;
+		layer.indexDir = indexDir;
+		layer.owlMemoryBudget = owlMemoryBudget;
+		layer.progressSeconds = progressSeconds;
+		layer.init();
+		return layer;
+	}
+	
+	private static SctidMap<String> toSctidMap(Map<String, String> map) {
+		SctidMap<String> sctidMap = new SctidMap<>();
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			sctidMap.put(SctidMap.parseSctid(entry.getKey()), entry.getValue());
+		}
+		return sctidMap;
 	}
 
 	private void runConversion() throws IOException {
-		info("First pass through the archives to find all number concepts");
-		processAllArchiveFiles ( new FileProcessor() {
-			public void processFile (ArchiveType archiveType, Path p, InputStream is) {
-				if (p.getFileName().toString().startsWith("sct2_Relationship_")) {
-					for (String[] fields :  new ArchiveLines(is)) {
+		if (progressSeconds > 0) {
+			metrics.startProgress(progressSeconds);
+		}
+		try {
+			convert();
+		} finally {
+			metrics.stopProgress();
+		}
+		reportViolations();
+		metrics.logSummary();
+		if (metricsReport != null) {
+			metrics.writeReport(metricsReport, conceptsRemodelled);
+		}
+	}
+	
+	private void convert() throws IOException {
+		metrics.startPhase("index");
+		//Numeric looking terms are held until we know which concepts are numbers.
+		//Later archives override earlier ones, as the previous dedicated description pass did.
+		//What's found in the snapshots is kept apart from the delta, so that it can be reused.
+		File indexFile = null;
+		NumberConceptIndex cachedIndex = null;
+		if (indexDir != null) {
+			indexFile = new File(indexDir, "number-concepts-" + NumberConceptIndex.archiveKey(dependency, extension) + ".idx");
+			cachedIndex = NumberConceptIndex.load(indexFile);
+			if (cachedIndex != null) {
+				info("Reusing number concepts previously found in snapshot archives: " + indexFile);
+			}
+		}
+		final boolean scanSnapshots = cachedIndex == null;
+		
+		//When only converting what the delta affects or what's been selected, the snapshot axioms are read via their own index
+		final boolean useOWLIndex = affectedOnly || selectedConcepts != null;
+		OWLSnapshotIndex owlIndex = null;
+		String owlIndexKey = null;
+		if (useOWLIndex) {
+			owlIndexKey = NumberConceptIndex.archiveKey(dependency, extension) + "-" + attributeTypesKey();
+			owlIndex = OWLSnapshotIndex.load(indexDir, owlIndexKey);
+			if (owlIndex != null) {
+				info("Reusing snapshot axioms previously extracted to " + owlIndex.getRowsFile());
+			}
+		}
+		final boolean readSnapshotOWL = !useOWLIndex || owlIndex == null;
+		final NumberConceptIndex snapshotIndex = scanSnapshots ? new NumberConceptIndex() : cachedIndex;
+		if (scanSnapshots && baseline != null) {
+			//The dependency has already been read, and comes before the extension
+			snapshotIndex.putAll(baseline.numbers);
+		}
+		final NumberConceptIndex deltaIndex = new NumberConceptIndex();
+		final List<DeferredEntry> deferredOWL = new ArrayList<>();
+		outputOWLMap = new SpillingRowStore(owlMemoryBudget);
+		if (generateInferred) {
+			inferredChanges = new InferredRelationshipChanges(attributeTypeMap);
+			if (baseline != null && baseline.inferred != null) {
+				inferredChanges.putAll(baseline.inferred);
+			}
+		}
+		if (buildingBaseline) {
+			baselineValuesUsed = new LongSet();
+		}
+		
+		metrics.startPhase("scan");
+		info("Single pass through the archives to find number concepts, numeric values and stated OWL axioms");
+		try {
+			processAllArchiveFiles ( new FileProcessor() {
+				public FileResult processFile (final ArchiveType archiveType, final Path p, InputStream is, Path extracted) throws IOException {
+					String fileName = p.getFileName().toString();
+					final boolean isDelta = archiveType.equals(ArchiveType.DELTA) && fileName.contains(DELTA + "_");  //SE has a file with the word delta in it!
+					if (fileName.startsWith(OWL_PREFIX) && !readSnapshotOWL && archiveType != ArchiveType.DELTA) {
+						//Only the header and name of the snapshot file are wanted, its rows are in the index
+						ArchiveLines lines = new ArchiveLines(is);
+						if (lines.next()) {
+							metrics.current().rowsRead++;
+							modifyIfRequired(archiveType, p, lines.getFields(), true, false);
+						}
+						return () -> {
+							if (owlPath == null && archiveType == latestArchiveType) {
+								owlPath = p;
+							}
+						};
+					} else if (fileName.startsWith(OWL_PREFIX)) {
+						//We can't convert the axioms until all number concepts are known, so spool
+						//the entry to disk and replay it once the zips have been read.
+						//An extracted file is already on disk, so is replayed where it is.
+						final DeferredEntry deferred = extracted != null ? new DeferredEntry(archiveType, p, isDelta, extracted, false) :
+								new DeferredEntry(archiveType, p, isDelta, spool(is), true);
+						return () -> deferredOWL.add(deferred);
+					}
+					boolean scanNumbers = scanSnapshots || archiveType == ArchiveType.DELTA;
+					boolean isRelationship = scanNumbers && fileName.startsWith(RELATIONSHIP_PREFIX);
+					boolean isDescription = scanNumbers && fileName.startsWith(DESCRIPTION_PREFIX);
+					boolean collectInferred = inferredChanges != null && fileName.startsWith(RELATIONSHIP_PREFIX);
+					//Other files in the latest archive only contribute their header, unless passing through the delta
+					boolean headerOnly = !isRelationship && !isDescription && !collectInferred && !(isDelta && !cdiChangesOnly);
+					//Findings are held locally so that files read in parallel are still merged in archive order
+					final NumberConceptIndex fileIndex = new NumberConceptIndex();
+					final InferredRelationshipChanges fileInferred = collectInferred ? new InferredRelationshipChanges(attributeTypeMap) : null;
+					boolean passThrough = isDelta && !cdiChangesOnly;
+					ConversionMetrics.Entry entryMetrics = metrics.current();
+					ArchiveLines lines = new ArchiveLines(is);
+					while (lines.next()) {
+						entryMetrics.rowsRead++;
 						//Is this a type of number?  Remember the SCTID if so
-						if (fields[IDX_ACTIVE].contentEquals("1") &&
-								fields[IDX_TYPE].equals(SCTID_IS_A) &&
-								fields[IDX_TARGET].equals(SCTID_NUMBER)) {
-							conceptNumberMap.put(fields[IDX_SOURCE], null);
+						//A malformed id can't be told apart from any other, so is ignored
+						if (isRelationship && lines.fieldEquals(IDX_ACTIVE, "1") &&
+								lines.fieldEquals(IDX_TYPE, SCTID_IS_A) &&
+								lines.fieldEquals(IDX_TARGET, SCTID_NUMBER)) {
+							long numberConcept = lines.getSctid(IDX_SOURCE);
+							if (numberConcept != SctidMap.NOT_AN_SCTID) {
+								fileIndex.addNumberConcept(numberConcept);
+							}
+						} else if (isDescription && lines.fieldEquals(IDX_ACTIVE, "1") &&
+								mayBeNumeric(lines, IDX_TERM)) {
+							long concept = lines.getSctid(IDX_CONCEPT);
+							String term = lines.getField(IDX_TERM);
+							if (concept != SctidMap.NOT_AN_SCTID && isNumeric(term)) {
+								fileIndex.addNumericTerm(concept, term);
+							}
+						}
+						//Strings are only needed for rows we might write out, and not for those we pass through.
+						//Inferred relationships that may change are held back until the numbers are known.
+						if (collectInferred && fileInferred.isCandidate(lines)) {
+							fileInferred.add(lines, passThrough);
+						} else if (passThrough) {
+							copyRF2(p, lines);
+						} else if (archiveType == latestArchiveType && lines.fieldEquals(IDX_ID, "id")) {
+							modifyIfRequired(archiveType, p, lines.getFields(), false, isDelta);
+						}
+						if (headerOnly) {
+							break;
 						}
 					}
+					return () -> {
+						(archiveType == ArchiveType.DELTA ? deltaIndex : snapshotIndex).putAll(fileIndex);
+						if (fileInferred != null) {
+							inferredChanges.putAll(fileInferred);
+						}
+						if (archiveType == latestArchiveType) {
+							if (relationshipPath == null && fileName.startsWith(RELATIONSHIP_PREFIX)) {
+								relationshipPath = p;
+							} else if (concreteValuesPath == null && fileName.startsWith(InferredRelationshipChanges.CONCRETE_VALUES_PREFIX)) {
+								concreteValuesPath = p;
+							}
+						}
+					};
+				}
+				
+				public String[] getFilePrefixes(ArchiveType archiveType) {
+					//Headers are taken from every file of the latest archive
+					if (archiveType == latestArchiveType) {
+						return null;
+					}
+					List<String> prefixes = new ArrayList<>();
+					if (scanSnapshots || inferredChanges != null) {
+						prefixes.add(RELATIONSHIP_PREFIX);
+					}
+					if (scanSnapshots) {
+						prefixes.add(DESCRIPTION_PREFIX);
+					}
+					if (readSnapshotOWL) {
+						prefixes.add(OWL_PREFIX);
+					}
+					return prefixes.toArray(new String[prefixes.size()]);
 				}
+			});
+			metrics.startPhase("numbers");
+			if (indexFile != null && scanSnapshots) {
+				snapshotIndex.save(indexFile);
+				info("Saved number concepts found in snapshot archives to " + indexFile);
 			}
-		});
-		info (conceptNumberMap.keySet().size() + " <! 260299005 |Number (qualifier value)| detected");
-		
-		info("Second pass through descriptions to determine actual numeric values ");
-		final Set<String> numberConcepts = conceptNumberMap.keySet();
-		processAllArchiveFiles ( new FileProcessor() {
-			public void processFile (ArchiveType archiveType, Path p, InputStream is) {
-				if (p.getFileName().toString().startsWith("sct2_Description_")) {
-					for (String[] fields :  new ArchiveLines(is)) {
-						//Is this a type of number?  Remember the SCTID if so
-						if (fields[IDX_ACTIVE].contentEquals("1") &&
-								numberConcepts.contains(fields[IDX_CONCEPT])) {
-							determineNumericValue(fields[IDX_CONCEPT], fields[IDX_TERM]);
+			
+			NumberConceptIndex numbers = new NumberConceptIndex();
+			numbers.putAll(snapshotIndex);
+			numbers.putAll(deltaIndex);
+			for (long numberConcept : numbers.getNumberConcepts()) {
+				conceptNumberMap.put(numberConcept, null);
+			}
+			info (conceptNumberMap.size() + " <! 260299005 |Number (qualifier value)| detected");
+			
+			for (long numberConcept : conceptNumberMap.keys()) {
+				String term = numbers.getNumericTerm(numberConcept);
+				if (term != null) {
+					determineNumericValue(numberConcept, term);
+				}
+			}
+			info (new HashSet<>(conceptNumberMap.values()).size() + " numeric values determined");
+			
+			//Someone is going to ask me why this number doesn't match the number of concepts as numbers!
+			//reportFailedNumberLookups(); eg 272065005 |Cardinal number (qualifier value)|
+			
+			metrics.startPhase("convert");
+			info("Changing concept-as-number attributes to concrete values");
+			List<DeferredEntry> replay = new ArrayList<>();
+			if (baseline != null) {
+				if (baseline.isValidFor(conceptNumberMap)) {
+					info("Reusing " + baseline.convertedOWL.size() + " axioms converted from " + dependency.getName());
+					for (Map.Entry<String, String[]> converted : baseline.convertedOWL.entrySet()) {
+						outputOWLMap.put(converted.getKey(), converted.getValue());
+					}
+					conceptsRemodelled += baseline.convertedOWL.size();
+				} else {
+					info("Numbers in " + (extension != null ? extension : delta).getName() + " change axioms of " + dependency.getName() + ", which will be converted again");
+					replay.addAll(baseline.owlEntries);
+				}
+			}
+			replay.addAll(deferredOWL);
+			if (useOWLIndex) {
+				List<Path> snapshotOWL = new ArrayList<>();
+				for (DeferredEntry entry : deferredOWL) {
+					if (entry.archiveType != ArchiveType.DELTA) {
+						snapshotOWL.add(entry.file);
+						if (entry.archiveType == latestArchiveType) {
+							//The rows will come from the index, but the header and file name come from here
+							writeSpooledHeader(entry);
 						}
 					}
 				}
+				if (owlIndex == null) {
+					owlIndex = OWLSnapshotIndex.build(indexDir, owlIndexKey, snapshotOWL, this::findAttributeValues);
+					info("Extracted snapshot axioms to " + owlIndex.getRowsFile());
+				}
+				convertIndexedSnapshotAxioms(owlIndex, deltaIndex);
 			}
-		});
-		info (new HashSet<>(conceptNumberMap.values()).size() + " numeric values determined");
-		
-		//Someone is going to ask me why this number doesn't match the number of concepts as numbers!
-		//reportFailedNumberLookups(); eg 272065005 |Cardinal number (qualifier value)|
-		
-		info("Third pass to change concept-as-number attributes to concrete values");
-		processAllArchiveFiles ( new FileProcessor() {
-			public void processFile (ArchiveType archiveType, Path p, InputStream is) throws IOException {
-				String fileName = p.getFileName().toString();
-				boolean isDelta = archiveType.equals(ArchiveType.DELTA) && fileName.contains(DELTA + "_");  //SE has a file with the word delta in it!
-				boolean isOWL = fileName.startsWith("sct2_sRefset_OWLExpression");
-				for (String[] fields :  new ArchiveLines(is)) {
-					modifyIfRequired(archiveType, p, fields, isOWL, isDelta);
+			for (DeferredEntry entry : replay) {
+				if (owlPath == null && entry.archiveType == latestArchiveType) {
+					owlPath = entry.path;
+				}
+				if (useOWLIndex && entry.archiveType != ArchiveType.DELTA) {
+					continue;
 				}
+				//Active rows that aren't written out regardless can be dropped if they can't contain a mapped attribute
+				boolean canSkip = !entry.isDelta || cdiChangesOnly;
+				ConversionMetrics.Entry entryMetrics = metrics.startEntry(entry.archiveType.name(), entry.path);
+				try {
+					if (workers > 1 && !entry.isDelta) {
+						convertInRanges(entry, entryMetrics);
+						continue;
+					}
+					try (InputStream is = new MappedRF2File(entry.file).open()) {
+						//Rows are read, filtered and split on one thread while they're converted on this one
+						PipelinedRowReader reader = new PipelinedRowReader(is, lines -> !canSkip || !lines.fieldEquals(IDX_ACTIVE, "1") ||
+								attributeFilter.isCandidate(lines.getBuffer(), lines.getLineStart(), lines.getLineEnd()));
+						//Not added in one statement, as the handler counts misses of its own
+						long skipped = reader.forEach(fields -> modifyIfRequired(entry.archiveType, entry.path, fields, true, entry.isDelta), entryMetrics);
+						preFilterSkipped += skipped;
+					}
+				} finally {
+					metrics.endEntry(entryMetrics);
+				}
+			}
+			info (preFilterSkipped + " axioms skipped as not containing any attribute to be replaced");
+			
+			if (buildingBaseline) {
+				Map<String, String[]> convertedOWL = new LinkedHashMap<>();
+				outputOWLMap.writeAll(fields -> convertedOWL.put(fields[IDX_ID], fields));
+				outputOWLMap.close();
+				baseline = new DependencyBaseline(snapshotIndex, conceptNumberMap, convertedOWL, baselineValuesUsed, deferredOWL, inferredChanges);
+				//The spooled OWL is the baseline's now
+				deferredOWL.clear();
+				return;
+			}
+		} finally {
+			for (DeferredEntry entry : deferredOWL) {
+				entry.discard();
 			}
-		});
+		}
 		
 		if (owlPath == null) {
-			exit ("Failed to detect Stated OWL file in " + latestArchiveType + " archive.");
+			fail ("Failed to detect Stated OWL file in " + latestArchiveType + " archive.");
+		}
+		
+		if (inferredChanges != null) {
+			metrics.startPhase("inferred");
+			writeInferredChanges();
 		}
 		
+		metrics.startPhase("remainder");
 		info("Appending non-superseeded snapshot conversion remainder");
-		for (String[] fields : outputOWLMap.values()) {
-			writeRF2(owlPath, fields);
+		if (outputOWLMap.getRunCount() > 0) {
+			info("Merging " + outputOWLMap.getRunCount() + " runs of converted axioms spilled to disk");
+		}
+		ConversionMetrics.Entry remainderMetrics = metrics.startEntry(latestArchiveType.name(), owlPath);
+		try {
+			outputOWLMap.writeAll(fields -> writeRF2(owlPath, fields));
+		} finally {
+			metrics.endEntry(remainderMetrics);
+			outputOWLMap.close();
 		}
 		
 		//Now we can close all our open file handles
+		metrics.startPhase("finish");
 		finish();
+		metrics.endPhase();
 		info("Processing Complete. Concepts remodelled: " + conceptsRemodelled);
 	}
+	
+	/**
+	 * Converts just the snapshot axioms of the selected concepts and members, along with those that 
+	 * use a number concept the delta has added or given a new numeric value if we're only converting 
+	 * what the delta affects.  Every other snapshot axiom is taken to have been converted already.
+	 */
+	private void convertIndexedSnapshotAxioms(OWLSnapshotIndex owlIndex, NumberConceptIndex deltaIndex) throws IOException {
+		TreeSet<Long> rows = new TreeSet<>();
+		if (affectedOnly) {
+			LongSet touched = new LongSet();
+			for (long concept : deltaIndex.getNumberConcepts()) {
+				touched.add(concept);
+			}
+			for (long concept : deltaIndex.getNumericTermConcepts()) {
+				if (conceptNumberMap.containsKey(concept)) {
+					touched.add(concept);
+				}
+			}
+			long[] affected = owlIndex.findRowsUsing(touched.keys());
+			info(touched.size() + " number concepts changed by the delta, used in " + affected.length + " snapshot axioms");
+			for (long row : affected) {
+				rows.add(row);
+			}
+		}
+		if (selectedConcepts != null) {
+			long[] selected = owlIndex.findRowsFor(selectedConcepts.keys());
+			for (long row : selected) {
+				rows.add(row);
+			}
+			int found = 0;
+			for (String id : selectedIds) {
+				long row = owlIndex.findRow(id);
+				if (row == -1) {
+					warn("No snapshot axiom found with id " + id);
+				} else {
+					rows.add(row);
+					found++;
+				}
+			}
+			info((selected.length + found) + " snapshot axioms selected for conversion");
+		}
+		
+		long[] offsets = new long[rows.size()];
+		int i = 0;
+		for (long row : rows) {
+			offsets[i++] = row;
+		}
+		final Path rowsPath = owlIndex.getRowsFile().toPath();
+		final ConversionMetrics.Entry entryMetrics = metrics.startEntry(ArchiveType.SNAPSHOT.name(), rowsPath);
+		try {
+			owlIndex.readRows(offsets, fields -> {
+				entryMetrics.rowsRead++;
+				modifyIfRequired(ArchiveType.SNAPSHOT, rowsPath, fields, true, false);
+			});
+		} finally {
+			metrics.endEntry(entryMetrics);
+		}
+	}
+	
+	/**
+	 * Writes the inactivated inferred relationships and the concrete values replacing them, 
+	 * to the latest archive's files or, if it has none, alongside its OWL file
+	 */
+	private void writeInferredChanges() throws IOException {
+		if (relationshipPath == null) {
+			relationshipPath = owlPath.resolveSibling(owlPath.getFileName().toString().replace(OWL_PREFIX, RELATIONSHIP_PREFIX));
+		}
+		if (concreteValuesPath == null) {
+			concreteValuesPath = relationshipPath.resolveSibling(relationshipPath.getFileName().toString()
+					.replace(RELATIONSHIP_PREFIX, InferredRelationshipChanges.CONCRETE_VALUES_PREFIX));
+		}
+		if (!fileInitialised(relationshipPath)) {
+			writeRF2(relationshipPath, InferredRelationshipChanges.RELATIONSHIP_HEADER);
+		}
+		if (!fileInitialised(concreteValuesPath)) {
+			writeRF2(concreteValuesPath, InferredRelationshipChanges.CONCRETE_VALUES_HEADER);
+		}
+		ConversionMetrics.Entry entryMetrics = metrics.startEntry(latestArchiveType.name(), relationshipPath);
+		try {
+			inferredChanges.write(conceptNumberMap, fields -> writeRF2(relationshipPath, fields), fields -> writeRF2(concreteValuesPath, fields));
+		} finally {
+			metrics.endEntry(entryMetrics);
+		}
+		info(inferredChanges.getInactivated() + " of " + inferredChanges.size() + " inferred relationships of mapped attributes replaced by concrete values");
+		if (inferredChanges.getConceptsSkipped() > 0) {
+			warn(inferredChanges.getConceptsSkipped() + " concepts' inferred relationships left unchanged, as not all their numbers have values");
+		}
+	}
+	
+	/**
+	 * Converts an OWL file whose rows are held for output at the end, rather than written as
+	 * they're read, in ranges on the worker threads.  Each range is rewritten into its own list,
+	 * and only this thread applies them to the converted axioms and counts, in file order, so the
+	 * result is the same as reading the file in one go.
+	 */
+	private void convertInRanges(DeferredEntry entry, ConversionMetrics.Entry entryMetrics) throws IOException {
+		MappedRF2File file = new MappedRF2File(entry.file);
+		long[] offsets = file.split((int) Math.max(workers, file.size() / OWL_RANGE_SIZE));
+		int ranges = offsets.length - 1;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, ranges));
+		try {
+			List<Future<ConvertedRange>> futures = new ArrayList<>();
+			for (int i = 0; i < ranges; i++) {
+				//Only a few ranges are converted ahead of the one being applied, to limit what's held
+				while (futures.size() < ranges && futures.size() <= i + workers * 2) {
+					final long start = offsets[futures.size()], end = offsets[futures.size() + 1];
+					futures.add(pool.submit(() -> convertRange(file, start, end)));
+				}
+				try {
+					applyRange(entry, futures.get(i).get(), entryMetrics);
+					futures.set(i, null);
+				} catch (ExecutionException e) {
+					throw asIOException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while converting " + entry.path, e);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private ConvertedRange convertRange(MappedRF2File file, long start, long end) throws IOException {
+		ConvertedRange range = new ConvertedRange(baselineValuesUsed != null);
+		try (InputStream is = file.open(start, end)) {
+			ArchiveLines lines = new ArchiveLines(is);
+			while (lines.next()) {
+				range.rowsRead++;
+				if (!lines.fieldEquals(IDX_ACTIVE, "1")) {
+					range.rows.add(lines.getFields());
+					continue;
+				}
+				if (!attributeFilter.isCandidate(lines.getBuffer(), lines.getLineStart(), lines.getLineEnd())) {
+					range.skipped++;
+					continue;
+				}
+				String[] fields = lines.getFields();
+				String owl = fields[IDX_OWL_EXPRESSION];
+				if (!attributeFilter.isCandidate(owl)) {
+					range.skipped++;
+					continue;
+				}
+				String modifiedOwl = rewriteOWL(fields[IDX_REFCOMPID], owl, range.valuesUsed, range.violations);
+				if (modifiedOwl != null) {
+					fields[IDX_EFFECTIVE_TIME] = "";
+					fields[IDX_OWL_EXPRESSION] = modifiedOwl;
+					range.rows.add(fields);
+				}
+			}
+		}
+		return range;
+	}
+	
+	private void applyRange(DeferredEntry entry, ConvertedRange range, ConversionMetrics.Entry entryMetrics) throws IOException {
+		entryMetrics.rowsRead += range.rowsRead;
+		entryMetrics.preFilterMisses += range.skipped;
+		preFilterSkipped += range.skipped;
+		for (String[] fields : range.rows) {
+			if (fields[IDX_ACTIVE].equals("1")) {
+				recordConverted(fields, false);
+			} else {
+				modifyIfRequired(entry.archiveType, entry.path, fields, true, false);
+			}
+		}
+		violations.addAll(range.violations);
+		if (range.valuesUsed != null) {
+			for (long value : range.valuesUsed.keys()) {
+				baselineValuesUsed.add(value);
+			}
+		}
+	}
+	
+	private void writeSpooledHeader(DeferredEntry entry) throws IOException {
+		if (owlPath == null) {
+			owlPath = entry.path;
+		}
+		try (InputStream is = Files.newInputStream(entry.file)) {
+			ArchiveLines lines = new ArchiveLines(is);
+			if (lines.next()) {
+				modifyIfRequired(entry.archiveType, entry.path, lines.getFields(), true, false);
+			}
+		}
+	}
+	
+	/**
+	 * @param selection comma separated concept SCTIDs and OWL member UUIDs, or a file with one per line
+	 */
+	private void selectAxioms(String selection) throws IOException {
+		selectedConcepts = new LongSet();
+		selectedIds = new ArrayList<>();
+		File selectionFile = new File(selection);
+		List<String> items = selectionFile.isFile() ? Files.readAllLines(selectionFile.toPath(), StandardCharsets.UTF_8) : Arrays.asList(selection.split(","));
+		for (String item : items) {
+			item = item.trim();
+			if (item.isEmpty()) {
+				continue;
+			}
+			long sctId = SctidMap.toSctid(item, 0, item.length());
+			if (sctId != SctidMap.NOT_AN_SCTID) {
+				selectedConcepts.add(sctId);
+			} else if (OWLSnapshotIndex.toUUID(item) != null) {
+				selectedIds.add(item);
+			} else {
+				throw new IOException ("'" + item + "' is neither a concept SCTID nor an OWL member id");
+			}
+		}
+	}
+	
+	private String attributeTypesKey() {
+		return attributeTypesKey(attributeTypeMap.keys());
+	}
+	
+	/**
+	 * @return a key for the attribute types being mapped, in whatever order they're given
+	 */
+	static String attributeTypesKey(long[] attributeTypes) {
+		attributeTypes = attributeTypes.clone();
+		Arrays.sort(attributeTypes);
+		return Integer.toHexString(Arrays.toString(attributeTypes).hashCode());
+	}
+	
+	private Path spool(InputStream is) throws IOException {
+		Path spoolFile = Files.createTempFile("cd-owl-", ".txt");
+		spoolFile.toFile().deleteOnExit();
+		Files.copy(is, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+		return spoolFile;
+	}
 
 	protected void modifyIfRequired(ArchiveType archiveType, Path p, String[] fields, boolean isOWL, boolean isDelta) throws IOException {
 		//Grab any header rows - delta or snapshot - if we've not seen them before
@@ -233,23 +942,17 @@ public class CdConversion
 				outputOWLMap.remove(fields[IDX_ID]);
 			}
 		} else {
-			String modifiedOwl = modifyOWLIfRequired(fields[IDX_REFCOMPID], owl);
-			//No need to change the effective time if the OWL is unchanged
-			boolean isModified = !owl.contentEquals(modifiedOwl);
+			String modifiedOwl = null;
+			if (attributeFilter.isCandidate(owl)) {
+				modifiedOwl = rewriteOWL(fields[IDX_REFCOMPID], owl, baselineValuesUsed, violations);
+			} else {
+				countPreFilterMiss();
+			}
+			boolean isModified = modifiedOwl != null;
 			if (isModified) {
-				validateBeforeAndAfter(fields[IDX_REFCOMPID], owl, modifiedOwl);
-				
-				//Only count concept remodel if not seen before
-				if (!outputOWLMap.containsKey(fields[IDX_ID])) {
-					conceptsRemodelled++;
-				}
 				fields[IDX_EFFECTIVE_TIME] = "";
 				fields[IDX_OWL_EXPRESSION] = modifiedOwl;
-				
-				//Are we storing this value to output later if no further updates are received?
-				if (!isDelta) {
-					outputOWLMap.put(fields[IDX_ID], fields);
-				}
+				recordConverted(fields, isDelta);
 			}
 			
 			//If we're processing a delta, we can output this directly
@@ -262,31 +965,117 @@ public class CdConversion
 	}
 
 	/**
-	 * Valiate some invariants
-	 * @param string
-	 * @param owl
-	 * @param modifiedOwl
+	 * Converts an axiom that may use a mapped attribute.  This only reads what's shared, so can
+	 * be run on any thread, as long as the values used and failures it's given are its own.
+	 * @return the converted axiom, or null if it's unchanged or failed validation
 	 */
-	private void validateBeforeAndAfter(String concept, String before, String after) {
-		//The number of open brackets should not change
-		int beforeOpenB = countChars('(', before);
-		int afterOpenB = countChars('(', after);
-		
-		if (beforeOpenB != afterOpenB) {
-			exit("OWL conversion failure, bracket count mismatch at " + concept + "\nBefore: " + before + "\nAfter: " + after);
+	private String rewriteOWL(String concept, String owl, LongSet valuesUsed, List<String> failures) {
+		String modifiedOwl = modifyOWLIfRequired(concept, owl);
+		if (valuesUsed != null) {
+			for (long value : findAttributeValues(owl)) {
+				valuesUsed.add(value);
+			}
 		}
-		//And it should match the number of closing brackets
-		int afterCloseB = countChars(')', after);
-		if (afterOpenB != afterCloseB) {
-			exit("OWL conversion failure, bracket pair mismatch at " + concept + "\nBefore: " + before + "\nAfter: " + after);
+		//No need to change the effective time if the OWL is unchanged
+		if (owl.contentEquals(modifiedOwl)) {
+			return null;
+		}
+		//When collecting violations, leave the axiom as it was rather than output it broken
+		return validateBeforeAndAfter(concept, owl, modifiedOwl, failures) ? modifiedOwl : null;
+	}
+	
+	private void recordConverted(String[] fields, boolean isDelta) throws IOException {
+		ConversionMetrics.Entry entryMetrics = metrics.current();
+		if (entryMetrics != null) {
+			entryMetrics.rowsRewritten++;
+		}
+		
+		//Only count concept remodel if not seen before
+		if (!outputOWLMap.containsKey(fields[IDX_ID])) {
+			conceptsRemodelled++;
 		}
 		
+		//Are we storing this value to output later if no further updates are received?
+		if (!isDelta) {
+			outputOWLMap.put(fields[IDX_ID], fields);
+		}
+	}
+
+	private void countPreFilterMiss() {
+		preFilterSkipped++;
+		ConversionMetrics.Entry entryMetrics = metrics.current();
+		if (entryMetrics != null) {
+			entryMetrics.preFilterMisses++;
+		}
+	}
+
+	/**
+	 * Valiate some invariants of the rewrite that produced after, using the counts it kept of the
+	 * regions it spliced into the output.  Everything else is copied from before unchanged, so
+	 * this checks what the rewrite did without scanning either string again.  It doesn't check
+	 * the input: an axiom whose brackets were already unbalanced is passed on as it was.
+	 * @return false if the rewrite is invalid and we're collecting violations rather than stopping
+	 */
+	boolean validateBeforeAndAfter(String concept, String before, String after) {
+		return validateBeforeAndAfter(concept, before, after, violations);
+	}
+	
+	private boolean validateBeforeAndAfter(String concept, String before, String after, List<String> failures) {
+		int[] rewriteBalance = rewrite.get().balance;
+		String failure = null;
+		//The number of open brackets should not change
+		if (rewriteBalance[0] != 0) {
+			failure = "bracket count mismatch";
+		//And the closing brackets spliced in should match them
+		} else if (rewriteBalance[0] != rewriteBalance[1]) {
+			failure = "bracket pair mismatch";
 		//And the number of colons should not changed, because the ones that previously
 		//preceeded an SCTID will now appear in ^^xsd:integer
-		int beforeColon = countChars(':', before);
-		int afterColon = countChars(':', after);
-		if (beforeColon != afterColon) {
-			exit("OWL conversion failure, argument count mismatch at " + concept + "\nBefore: " + before + "\nAfter: " + after);
+		} else if (rewriteBalance[2] != 0) {
+			failure = "argument count mismatch";
+		}
+		if (failure == null) {
+			return true;
+		}
+		String msg = "OWL conversion failure, " + failure + " at " + concept + "\nBefore: " + before + "\nAfter: " + after;
+		if (!collectViolations) {
+			fail(msg);
+		}
+		failures.add(msg);
+		return false;
+	}
+
+	/**
+	 * Counts the brackets and colons of the region spliced into the output from the given start,
+	 * less those of the ObjectSomeValuesFrom(:A :B) clause it replaced: one pair and two colons
+	 */
+	private static void countSpliced(int[] rewriteBalance, StringBuilder output, int regionStart) {
+		rewriteBalance[0]--;
+		rewriteBalance[1]--;
+		rewriteBalance[2] -= 2;
+		for (int i = regionStart; i < output.length(); i++) {
+			switch (output.charAt(i)) {
+				case '(': rewriteBalance[0]++; break;
+				case ')': rewriteBalance[1]++; break;
+				case ':': rewriteBalance[2]++; break;
+			}
+		}
+	}
+
+	void setCollectViolations(boolean collectViolations) {
+		this.collectViolations = collectViolations;
+	}
+
+	List<String> getViolations() {
+		return violations;
+	}
+
+	private void reportViolations() {
+		if (!violations.isEmpty()) {
+			warn(violations.size() + " axioms failed validation and were output unconverted:");
+			for (String violation : violations) {
+				warn(violation);
+			}
 		}
 	}
 
@@ -295,139 +1084,470 @@ public class CdConversion
 		System.exit(-1);
 	}
 
-	private int countChars(char c1, String str) {
-		int count = 0;
-		for (char c2 : str.toCharArray()) {
-			if (c1 == c2) {
-				count++;
-			}
+	/**
+	 * Ends the run, or the conversion alone if the process is serving others
+	 */
+	private void fail(String msg) {
+		if (exitOnFailure) {
+			exit(msg);
 		}
-		return count;
+		throw new IllegalStateException(msg);
 	}
 
+	/**
+	 * Single pass scan for ObjectSomeValuesFrom(:A :B) clauses, equivalent to matching REGEX.
+	 * Axioms without a mapped attribute are returned as is, without allocating anything. 
+	 */
 	protected String modifyOWLIfRequired(String concept, String owl) {
-		Matcher m = pattern.matcher(owl); // Matching groups: (1(:2) (:3))
 		//replacing with something like DataHasValue(:3264479001 "1"^^xsd:integer)
-		StringBuffer sb = new StringBuffer();
-		while (m.find()) {
-			String source = m.group(2);
+		Rewrite thisRewrite = rewrite.get();
+		StringBuilder sb = null;
+		int[] rewriteBalance = thisRewrite.balance;
+		int copiedTo = 0;
+		int[] clause = thisRewrite.clause;
+		int clauseStart = nextClause(owl, 0, clause);
+		while (clauseStart != -1) {
+			int sourceStart = clause[0], sourceEnd = clause[1], targetStart = clause[2], targetEnd = clause[3];
+			
 			//Is this one of the attribute types we're going to replace?
-			if (attributeTypeMap.containsKey(source)) {
+			String attributeType = attributeTypeMap.get(SctidMap.toSctid(owl, sourceStart, sourceEnd));
+			if (attributeType != null) {
 				//Do we have a number value for it?
-				String attributeType = attributeTypeMap.get(source);
-				String concreteValue = conceptNumberMap.get(m.group(3));
-				String concreteType = concreteTypeMap.get(attributeType);
+				String concreteValue = conceptNumberMap.get(SctidMap.toSctid(owl, targetStart, targetEnd));
+				String concreteType = concreteTypeMap.get(SctidMap.toSctid(attributeType));
 				if (concreteValue == null) {
-					warn("Failed to find a numeric for " + m.group(3) + " in " + concept);
+					warn("Failed to find a numeric for " + owl.substring(targetStart, targetEnd) + " in " + concept);
 					return owl;
 				}
 				
-				//Now we can build up our string for a replacment
-				String replacement = "DataHasValue(:" + attributeTypeMap.get(source) + " \"" +
-						concreteValue + "\"^^xsd:" + concreteType + ")";
-				m.appendReplacement(sb, replacement);
-			} else {
-				//Otherwise just append what we matched 'as is'
-				m.appendReplacement(sb, m.group(0));
+				//Now we can build up our string for a replacement
+				if (sb == null) {
+					sb = thisRewrite.buffer;
+					sb.setLength(0);
+					Arrays.fill(rewriteBalance, 0);
+				}
+				sb.append(owl, copiedTo, clauseStart);
+				int regionStart = sb.length();
+				sb.append("DataHasValue(:").append(attributeType).append(" \"")
+					.append(concreteValue).append("\"^^xsd:").append(concreteType).append(")");
+				countSpliced(rewriteBalance, sb, regionStart);
+				copiedTo = targetEnd + 1;
 			}
+			clauseStart = nextClause(owl, targetEnd + 1, clause);
+		}
+		
+		if (sb == null) {
+			return owl;
 		}
-		m.appendTail(sb);
+		sb.append(owl, copiedTo, owl.length());
 		return sb.toString();
 	}
+	
+	/**
+	 * @return the concepts used as the value of a mapped attribute in any ObjectSomeValuesFrom(:A :B) clause,
+	 * whether or not they're known to be numbers
+	 */
+	long[] findAttributeValues(String owl) {
+		LongSet found = new LongSet();
+		int[] clause = rewrite.get().clause;
+		int clauseStart = nextClause(owl, 0, clause);
+		while (clauseStart != -1) {
+			if (attributeTypeMap.containsKey(SctidMap.toSctid(owl, clause[0], clause[1]))) {
+				long value = SctidMap.toSctid(owl, clause[2], clause[3]);
+				if (value != SctidMap.NOT_AN_SCTID) {
+					found.add(value);
+				}
+			}
+			clauseStart = nextClause(owl, clause[3] + 1, clause);
+		}
+		return found.keys();
+	}
+	
+	/**
+	 * Finds the next ObjectSomeValuesFrom(:A :B) clause at or after the given position, 
+	 * leaving the start and end of A then B in clause.
+	 * @return the start of the clause, or -1 if there are no more
+	 */
+	private static int nextClause(String owl, int from, int[] clause) {
+		int clauseStart = owl.indexOf(CLAUSE_START, from);
+		while (clauseStart != -1) {
+			int sourceStart = clauseStart + CLAUSE_START.length();
+			int sourceEnd = endOfSctid(owl, sourceStart);
+			int targetStart = sourceEnd + 2;
+			int targetEnd = sourceEnd == -1 || !owl.startsWith(" :", sourceEnd) ? -1 : endOfSctid(owl, targetStart);
+			if (targetEnd != -1 && targetEnd < owl.length() && owl.charAt(targetEnd) == ')') {
+				clause[0] = sourceStart;
+				clause[1] = sourceEnd;
+				clause[2] = targetStart;
+				clause[3] = targetEnd;
+				return clauseStart;
+			}
+			//Not a clause we're interested in, keep looking
+			clauseStart = owl.indexOf(CLAUSE_START, clauseStart + 1);
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return the end of a 6 to 18 digit SCTID starting at the given position, or -1 if there isn't one
+	 */
+	private static int endOfSctid(String str, int start) {
+		int end = start;
+		while (end < str.length() && end - start <= MAX_SCTID_LENGTH) {
+			char c = str.charAt(end);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			end++;
+		}
+		int length = end - start;
+		return length >= MIN_SCTID_LENGTH && length <= MAX_SCTID_LENGTH ? end : -1;
+	}
+	
+	private void initAttributeFilter() {
+		List<String> attributeTypes = new ArrayList<>();
+		for (long attributeType : attributeTypeMap.keys()) {
+			attributeTypes.add(Long.toString(attributeType));
+		}
+		attributeFilter = new AttributeFilter(attributeTypes);
+	}
 
 	private static File validateFile(String filePath) throws IOException {
 		File f = new File(filePath);
-		if (!f.canRead() || f.isDirectory() || !filePath.endsWith(".zip")) {
-			throw new IOException ("'" + filePath + "' could not be read as an archive file.");
+		if (!f.canRead() || (!f.isDirectory() && !filePath.endsWith(".zip"))) {
+			throw new IOException ("'" + filePath + "' could not be read as an archive file or extracted archive directory.");
 		}
 		return f;
 	}
 
 	private void processAllArchiveFiles(FileProcessor processor) throws IOException {
-		loadArchiveZip(ArchiveType.SNAPSHOT, dependency, processor, SNAPSHOT);
-		loadArchiveZip(ArchiveType.EXTENSION, extension, processor, SNAPSHOT);
-		loadArchiveZip(ArchiveType.DELTA, delta, processor, DELTA);
+		List<ZipFile> openArchives = new ArrayList<>();
+		List<Callable<FileResult>> tasks = new ArrayList<>();
+		try {
+			//When converting several extensions, the dependency has been read for all of them already
+			loadArchive(ArchiveType.SNAPSHOT, baseline == null ? dependency : null, processor, SNAPSHOT, openArchives, tasks);
+			loadArchive(ArchiveType.EXTENSION, extension, processor, SNAPSHOT, openArchives, tasks);
+			loadArchive(ArchiveType.DELTA, delta, processor, DELTA, openArchives, tasks);
+			runInArchiveOrder(tasks);
+		} finally {
+			for (ZipFile zip : openArchives) {
+				try {
+					zip.close();
+				} catch (Exception e) {} //Well, we tried.
+			}
+		}
 	}
 	
-	private void loadArchiveZip(ArchiveType archiveType, File archive, FileProcessor processor, String filter) throws IOException {
+	private void loadArchive(ArchiveType archiveType, File archive, FileProcessor processor, String filter, 
+			List<ZipFile> openArchives, List<Callable<FileResult>> tasks) throws IOException {
 		if (archive == null) {
 			return;
 		}
 		
 		info ("Processing " + archive.getName());
-		ZipInputStream zis = new ZipInputStream(new FileInputStream(archive));
-		ZipEntry ze = zis.getNextEntry();
+		if (archive.isDirectory()) {
+			loadArchiveDirectory(archiveType, archive, processor, filter, tasks);
+		} else {
+			loadArchiveZip(archiveType, archive, processor, filter, openArchives, tasks);
+		}
+	}
+	
+	/**
+	 * Reads the zip's central directory so that only the entries the processor has asked
+	 * for are inflated.  Everything else is skipped without being decompressed.
+	 * A task is queued for each entry, the archive is left open until they've been run.
+	 */
+	private void loadArchiveZip(final ArchiveType archiveType, File archive, final FileProcessor processor, String filter, 
+			List<ZipFile> openArchives, List<Callable<FileResult>> tasks) throws IOException {
+		String[] prefixes = processor.getFilePrefixes(archiveType);
+		final ZipFile zip = new ZipFile(archive);
+		openArchives.add(zip);
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while (entries.hasMoreElements()) {
+			final ZipEntry ze = entries.nextElement();
+			if (!ze.isDirectory()) {
+				final Path path = Paths.get(ze.getName());
+				String fileName = path.getFileName().toString();
+				if (fileName.contains(filter) && hasPrefix(fileName, prefixes)) {
+					tasks.add(() -> readFile(archiveType, path, processor, zip.getInputStream(ze), null));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads an archive that's already been extracted, in place.  Its files are named relative to
+	 * the directory's parent, so an extracted release folder gives the same paths as its zip,
+	 * and they're memory mapped rather than inflated.
+	 */
+	private void loadArchiveDirectory(final ArchiveType archiveType, File archive, final FileProcessor processor, String filter, 
+			List<Callable<FileResult>> tasks) throws IOException {
+		String[] prefixes = processor.getFilePrefixes(archiveType);
+		Path dir = archive.toPath().toAbsolutePath().normalize();
+		Path root = dir.getParent() == null ? dir : dir.getParent();
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(dir)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		for (final Path file : files) {
+			final Path path = root.relativize(file);
+			String fileName = path.getFileName().toString();
+			if (fileName.contains(filter) && hasPrefix(fileName, prefixes)) {
+				tasks.add(() -> readFile(archiveType, path, processor, new MappedRF2File(file).open(), file));
+			}
+		}
+	}
+	
+	private FileResult readFile(ArchiveType archiveType, Path path, FileProcessor processor, InputStream in, Path extracted) throws IOException {
+		ConversionMetrics.Entry entryMetrics = metrics.startEntry(archiveType.name(), path);
+		ConversionMetrics.CountingInputStream is = new ConversionMetrics.CountingInputStream(in);
 		try {
-			while (ze != null) {
-				if (!ze.isDirectory()) {
-					Path path = Paths.get(ze.getName());
-					if (path.getFileName().toString().contains(filter)) {
-						processor.processFile(archiveType, path, zis);
-					}
+			return processor.processFile(archiveType, path, is, extracted);
+		} finally {
+			is.close();
+			entryMetrics.bytesInflated = is.count;
+			metrics.endEntry(entryMetrics);
+		}
+	}
+	
+	/**
+	 * Entries are read on the worker pool when more than one worker is configured, but their
+	 * results are always merged on this thread in the order the archives were specified, so 
+	 * that an extension overrides its dependency and a delta overrides both.
+	 */
+	private void runInArchiveOrder(List<Callable<FileResult>> tasks) throws IOException {
+		if (workers <= 1) {
+			for (Callable<FileResult> task : tasks) {
+				merge(call(task));
+			}
+			return;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, tasks.size() + 1));
+		try {
+			List<Future<FileResult>> futures = new ArrayList<>();
+			for (Callable<FileResult> task : tasks) {
+				futures.add(pool.submit(task));
+			}
+			for (Future<FileResult> future : futures) {
+				try {
+					merge(future.get());
+				} catch (ExecutionException e) {
+					throw asIOException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while processing archive files", e);
 				}
-				ze = zis.getNextEntry();
 			}
-		}  finally {
-			try{
-				zis.closeEntry();
-				zis.close();
-			} catch (Exception e){} //Well, we tried.
+		} finally {
+			pool.shutdownNow();
 		}
 	}
 	
+	private FileResult call(Callable<FileResult> task) throws IOException {
+		try {
+			return task.call();
+		} catch (Exception e) {
+			throw asIOException(e);
+		}
+	}
+	
+	private void merge(FileResult result) throws IOException {
+		if (result != null) {
+			result.merge();
+		}
+	}
+	
+	private IOException asIOException(Throwable t) {
+		if (t instanceof IOException) {
+			return (IOException) t;
+		} else if (t instanceof UncheckedIOException) {
+			return ((UncheckedIOException) t).getCause();
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		return new IOException(t);
+	}
+	
+	private static boolean hasPrefix(String fileName, String[] prefixes) {
+		if (prefixes == null) {
+			return true;
+		}
+		for (String prefix : prefixes) {
+			if (fileName.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 
-	protected void determineNumericValue(String numberConcept, String term) {
+	protected void determineNumericValue(long numberConcept, String term) {
+		if (isNumeric(term)) {
+			//We've purely a number to store
+			conceptNumberMap.put(numberConcept, term);
+		}
+	}
+	
+	/**
+	 * Checks the first character of a field without decoding it, in the same way as isNumeric
+	 */
+	private static boolean mayBeNumeric(ArchiveLines lines, int idx) {
+		byte[] buffer = lines.getBuffer();
+		int i = lines.getFieldStart(idx);
+		int end = lines.getFieldEnd(idx);
+		while (i < end && buffer[i] >= 0 && buffer[i] <= ' ') {
+			i++;
+		}
+		if (i < end && (buffer[i] == '+' || buffer[i] == '-')) {
+			i++;
+		}
+		return i < end && ((buffer[i] >= '0' && buffer[i] <= '9') || buffer[i] == '.' || buffer[i] == 'N' || buffer[i] == 'I');
+	}
+	
+	private static boolean isNumeric(String term) {
+		//Most terms are words, so reject those cheaply rather than via a thrown exception.
+		//Double.parseDouble trims and accepts a sign, digits, '.', NaN and Infinity
+		String trimmed = term.trim();
+		int start = trimmed.startsWith("+") || trimmed.startsWith("-") ? 1 : 0;
+		if (trimmed.length() <= start) {
+			return false;
+		}
+		char c = trimmed.charAt(start);
+		if (!Character.isDigit(c) && c != '.' && c != 'N' && c != 'I') {
+			return false;
+		}
 		try {
 			Double.parseDouble(term);
-			//If we get here, we've purely a number to store
-			conceptNumberMap.put(numberConcept, term);
-		} catch (Exception e) {}
-		
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
 	}
 	
-	private void writeRF2(Path p, String[] fields) throws IOException {
-		PrintWriter pw = getPrintWriter(p);
-		StringBuffer line = new StringBuffer();
-		for (int x=0; x<fields.length; x++) {
-			if (x > 0) {
-				line.append(FIELD_DELIMITER);
-			}
-			line.append(fields[x]==null?"":fields[x]);
+	void writeRF2(Path p, String[] fields) throws IOException {
+		countWritten();
+		//Encoded and written on the writer thread, in the order given
+		getLineWriter().write(getWriter(p), fields);
+	}
+	
+	/**
+	 * Passes the row the cursor is on through to the output as it was read, unless it's 
+	 * the header of a file that's already been started
+	 */
+	private void copyRF2(Path p, ArchiveLines lines) throws IOException {
+		if (lines.fieldEquals(IDX_ID, "id") && fileInitialised(p)) {
+			return;
+		}
+		countWritten();
+		getLineWriter().write(getWriter(p), Arrays.copyOfRange(lines.getBuffer(), lines.getLineStart(), lines.getLineEnd()));
+	}
+	
+	private void countWritten() {
+		ConversionMetrics.Entry entryMetrics = metrics.current();
+		if (entryMetrics != null) {
+			entryMetrics.rowsWritten++;
 		}
-		pw.print(line.toString() + LINE_DELIMITER);
+	}
+	
+	private synchronized PipelinedLineWriter getLineWriter() {
+		if (lineWriter == null) {
+			lineWriter = new PipelinedLineWriter();
+		}
+		return lineWriter;
 	}
 	
 	/**
-	 * @return A printer writer appropriate for the given path, in the output directory 
+	 * @return A writer appropriate for the given path, in the output directory 
 	 * and with the original effectiveTime replaced with today's date.
 	 */
-	PrintWriter getPrintWriter(Path p) throws IOException {
+	RF2FileWriter getWriter(Path p) throws IOException {
+		RF2FileWriter writer = writerMap.get(p);
+		if (writer == null) {
+			//Files may be opened from several workers at once
+			synchronized (writerMap) {
+				writer = writerMap.get(p);
+				if (writer == null) {
+					String fileName = modifyEffectiveDate(p);
+					List<WritableByteChannel> channels = new ArrayList<>();
+					try {
+						if (!archiveOnly) {
+							channels.add(RF2FileWriter.open(ensureFileExists(outputDir + "/" + fileName).toPath()));
+						}
+						//Named as if the output folder had been archived
+						WritableByteChannel entry = archiver.newEntry(OUTPUT_DIR + "/" + fileName.replace(File.separatorChar, '/'));
+						if (entry != null) {
+							channels.add(entry);
+						}
+					} catch (IOException e) {
+						throw new IOException("Unable to initialise " + outputDir + "/" + p.toString() + " due to " + e.getMessage(), e);
+					}
+					writer = new RF2FileWriter(channels.toArray(new WritableByteChannel[channels.size()]));
+					writerMap.put(p, writer);
+				}
+			}
+		}
+		return writer;
+	}
+	
+	void finish() throws IOException {
+		closeOutput(true);
+	}
+	
+	/**
+	 * Closes whatever a conversion that failed part way left open, and deletes what it had
+	 * written for the archives without writing them
+	 */
+	private void abandon() {
 		try {
-			PrintWriter pw = printWriterMap.get(p);
-			if (pw == null) {
-				File file = ensureFileExists("output/" + modifyEffectiveDate(p));
-				OutputStreamWriter osw = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
-				BufferedWriter bw = new BufferedWriter(osw);
-				pw = new PrintWriter(bw);
-				printWriterMap.put(p, pw);
-			}
-			return pw;
-		} catch (Exception e) {
-			throw new IOException("Unable to initialise output/" + p.toString() + " due to " + e.getMessage(), e);
+			closeOutput(false);
+		} catch (IOException e) {
+			warn("Failed to close the output of a failed conversion: " + e);
+		}
+		if (outputOWLMap != null) {
+			try {
+				outputOWLMap.close();
+			} catch (IOException e) {
+				warn("Failed to delete converted axioms spilled to disk: " + e);
+			}
 		}
 	}
 	
-	private void finish() {
-		for (PrintWriter pw : printWriterMap.values()) {
+	private void closeOutput(boolean writeArchives) throws IOException {
+		//Everything is closed, even if something has failed, but the first failure is thrown
+		IOException failure = null;
+		if (lineWriter != null) {
 			try {
-				pw.flush();
-				pw.close();
-			} catch (Exception e) {}
+				lineWriter.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+			lineWriter = null;
+		}
+		for (Map.Entry<Path, RF2FileWriter> entry : writerMap.entrySet()) {
+			try {
+				entry.getValue().close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = new IOException("Failed to write " + entry.getKey(), e);
+				}
+			}
+		}
+		writerMap.clear();
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			if (writeArchives && !archiver.isEmpty()) {
+				archiver.write();
+			}
+		} finally {
+			archiver.close();
 		}
 	}
 	
 	private boolean fileInitialised(Path p) {
-		return printWriterMap.containsKey(p);
+		return writerMap.containsKey(p);
 	}
 	
 	private String modifyEffectiveDate(Path p) {
@@ -497,7 +1617,72 @@ public class CdConversion
 	}
 	
 	interface FileProcessor {
-		void processFile (ArchiveType archiveType, Path path, InputStream is) throws IOException;
+		/**
+		 * May be called concurrently for different files when running with multiple workers.
+		 * @param extracted the file itself when it's read from an extracted archive directory, 
+		 * so that it can be read again without being copied, or null when it's a zip entry
+		 * @return any work that must be applied in archive order once the file has been read, or null
+		 */
+		FileResult processFile (ArchiveType archiveType, Path path, InputStream is, Path extracted) throws IOException;
+		
+		/**
+		 * @return the file name prefixes this processor needs to see from the given archive, 
+		 * or null if every file is required
+		 */
+		default String[] getFilePrefixes (ArchiveType archiveType) {
+			return null;
+		}
+	}
+	
+	interface FileResult {
+		void merge() throws IOException;
+	}
+	
+	private static class Rewrite {
+		final StringBuilder buffer = new StringBuilder();
+		final int[] balance = new int[3];  //Open brackets, close brackets and colons added by the last rewrite
+		final int[] clause = new int[4];   //Start and end of the attribute type then value of the clause found
+	}
+	
+	/**
+	 * The rows of part of an OWL file that have to be applied to the converted axioms, in file order:
+	 * rewritten active rows, along with inactive and header rows as they were read
+	 */
+	private static class ConvertedRange {
+		final List<String[]> rows = new ArrayList<>();
+		final List<String> violations = new ArrayList<>();
+		final LongSet valuesUsed;
+		int rowsRead = 0;
+		int skipped = 0;
+		
+		ConvertedRange (boolean collectValuesUsed) {
+			valuesUsed = collectValuesUsed ? new LongSet() : null;
+		}
+	}
+	
+	/**
+	 * An archive entry held back until the number concepts are fully known
+	 */
+	static class DeferredEntry {
+		final ArchiveType archiveType;
+		final Path path;
+		final boolean isDelta;
+		final Path file;
+		final boolean spooled;  //Otherwise the file is the extracted original, which is left alone
+		
+		DeferredEntry (ArchiveType archiveType, Path path, boolean isDelta, Path file, boolean spooled) {
+			this.archiveType = archiveType;
+			this.path = path;
+			this.isDelta = isDelta;
+			this.file = file;
+			this.spooled = spooled;
+		}
+		
+		void discard() throws IOException {
+			if (spooled) {
+				Files.deleteIfExists(file);
+			}
+		}
 	}
 	
 }
@@ -0,0 +1,66 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Posts a delta archive to a conversion server started with -serve, and saves the converted archive.
+ * Takes the place of the command line conversion in scripts that have a server to hand.
+ */
+public class ConversionClient {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java -cp CdConversion.jar org.snomed.otf.cd.ConversionClient <delta archive> <output archive> [<port> or <server url>]");
+			System.exit(-1);
+		}
+		String server = args.length > 2 ? args[2] : "8080";
+		if (!server.contains(":")) {
+			server = "http://localhost:" + server;
+		}
+		convert(new URL(server + "/convert"), new File(args[0]), new File(args[1]));
+		CdConversion.info("Converted delta written to " + args[1]);
+	}
+
+	static void convert(URL convertUrl, File delta, File outputArchive) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) convertUrl.openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(delta.length());
+			connection.setRequestProperty("Content-Type", "application/zip");
+			try (OutputStream os = connection.getOutputStream()) {
+				Files.copy(delta.toPath(), os);
+			}
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK) {
+				String message = "";
+				try (InputStream is = connection.getErrorStream()) {
+					if (is != null) {
+						message = new String(readAll(is), StandardCharsets.UTF_8).trim();
+					}
+				}
+				throw new IOException("Conversion server responded " + status + ": " + message);
+			}
+			try (InputStream is = connection.getInputStream()) {
+				Files.copy(is, outputArchive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,308 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Timings and counts for each phase of a conversion and each archive entry read within it,
+ * reported at the end of the run as JSON or CSV, and optionally as periodic progress lines.
+ *
+ * Each entry is only updated by the thread reading it, which finds it as its current entry,
+ * so the counts are plain fields.  Progress lines may see them slightly out of date.
+ */
+class ConversionMetrics {
+
+	private final long runStart = System.nanoTime();
+	private final List<Phase> phases = new ArrayList<>();
+	private final List<Entry> entries = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<Entry> currentEntry = new ThreadLocal<>();
+	private volatile Phase currentPhase;
+	private ScheduledExecutorService progress;
+	private final boolean peakHeapReported;
+
+	static class Phase {
+		final String name;
+		final long start = System.nanoTime();
+		long nanos = -1;
+		long heapUsed;
+
+		Phase (String name) {
+			this.name = name;
+		}
+	}
+
+	static class Entry {
+		final String phase, archive;
+		final Path path;
+		final long start = System.nanoTime();
+		long nanos = -1;
+		long bytesInflated, rowsRead, rowsRewritten, rowsWritten, preFilterMisses;
+
+		Entry (String phase, String archive, Path path) {
+			this.phase = phase;
+			this.archive = archive;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * @param peakHeapReported true for the metrics of the run as a whole.  The peak is the process's,
+	 * so the conversions a run is made up of, or that a server makes, don't report it as their own.
+	 */
+	ConversionMetrics (boolean peakHeapReported) {
+		this.peakHeapReported = peakHeapReported;
+	}
+
+	/**
+	 * Resets the peak usage of the heap pools, which are shared by the whole JVM, so is only
+	 * done once at the start of a run
+	 */
+	static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : heapPools()) {
+			pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * Ends the current phase, if any, and starts the next
+	 */
+	synchronized void startPhase(String name) {
+		endPhase();
+		currentPhase = new Phase(name);
+		phases.add(currentPhase);
+	}
+
+	synchronized void endPhase() {
+		Phase phase = currentPhase;
+		if (phase != null && phase.nanos == -1) {
+			phase.nanos = System.nanoTime() - phase.start;
+			Runtime runtime = Runtime.getRuntime();
+			phase.heapUsed = runtime.totalMemory() - runtime.freeMemory();
+		}
+	}
+
+	/**
+	 * Starts timing an entry in the current phase, which becomes this thread's current entry
+	 */
+	Entry startEntry(String archive, Path path) {
+		Phase phase = currentPhase;
+		Entry entry = new Entry(phase == null ? "" : phase.name, archive, path);
+		entries.add(entry);
+		currentEntry.set(entry);
+		return entry;
+	}
+
+	void endEntry(Entry entry) {
+		entry.nanos = System.nanoTime() - entry.start;
+		currentEntry.remove();
+	}
+
+	/**
+	 * @return the entry this thread is working on, or null if it isn't on one
+	 */
+	Entry current() {
+		return currentEntry.get();
+	}
+
+	/**
+	 * Logs a line with the current phase and running totals every so many seconds, until stopped
+	 */
+	void startProgress(int seconds) {
+		progress = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "conversion-progress");
+			thread.setDaemon(true);
+			return thread;
+		});
+		progress.scheduleAtFixedRate(() -> {
+			Phase phase = currentPhase;
+			long[] totals = totals();
+			Runtime runtime = Runtime.getRuntime();
+			CdConversion.info(String.format("Progress: %s after %ds, %d rows read, %d rewritten, %d written, %dMB heap used",
+					phase == null ? "starting" : phase.name, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - runStart),
+					totals[1], totals[2], totals[3], (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)));
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	void stopProgress() {
+		if (progress != null) {
+			progress.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return bytes inflated, rows read, rewritten, written and pre-filter misses across all entries
+	 */
+	private long[] totals() {
+		long[] totals = new long[5];
+		for (Entry entry : entries) {
+			totals[0] += entry.bytesInflated;
+			totals[1] += entry.rowsRead;
+			totals[2] += entry.rowsRewritten;
+			totals[3] += entry.rowsWritten;
+			totals[4] += entry.preFilterMisses;
+		}
+		return totals;
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pools.add(pool);
+			}
+		}
+		return pools;
+	}
+
+	/**
+	 * @return the sum of each heap pool's peak usage, which is at least the peak of the heap as a whole
+	 */
+	static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heapPools()) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	/**
+	 * Logs the time taken by each phase and the entry that took longest
+	 */
+	void logSummary() {
+		for (Phase phase : phases) {
+			CdConversion.info("Phase " + phase.name + " took " + TimeUnit.NANOSECONDS.toMillis(phase.nanos) + "ms");
+		}
+		Entry slowest = null;
+		for (Entry entry : entries) {
+			if (slowest == null || entry.nanos > slowest.nanos) {
+				slowest = entry;
+			}
+		}
+		if (slowest != null) {
+			CdConversion.info("Slowest entry: " + slowest.path + " in " + slowest.phase + ", " + TimeUnit.NANOSECONDS.toMillis(slowest.nanos) + "ms");
+		}
+		logPeakHeap();
+	}
+
+	void logPeakHeap() {
+		if (peakHeapReported) {
+			CdConversion.info("Peak heap: " + peakHeap() / (1024 * 1024) + "MB");
+		}
+	}
+
+	/**
+	 * Writes the report as CSV if the file name ends .csv, otherwise as JSON
+	 */
+	void writeReport(File file, long conceptsRemodelled) throws IOException {
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			if (file.getName().toLowerCase().endsWith(".csv")) {
+				writeCsv(out);
+			} else {
+				writeJson(out, conceptsRemodelled);
+			}
+		}
+		CdConversion.info("Metrics written to " + file);
+	}
+
+	private void writeCsv(Writer out) throws IOException {
+		out.write("kind,phase,archive,path,millis,bytesInflated,rowsRead,rowsRewritten,rowsWritten,preFilterMisses,heapUsedBytes\n");
+		for (Phase phase : phases) {
+			out.write("phase," + phase.name + ",,," + TimeUnit.NANOSECONDS.toMillis(phase.nanos) + ",,,,,," + phase.heapUsed + "\n");
+		}
+		for (Entry entry : entries) {
+			out.write("entry," + entry.phase + "," + entry.archive + "," + csv(entry.path.toString()) + "," + TimeUnit.NANOSECONDS.toMillis(entry.nanos) + "," +
+					entry.bytesInflated + "," + entry.rowsRead + "," + entry.rowsRewritten + "," + entry.rowsWritten + "," + entry.preFilterMisses + ",\n");
+		}
+		long[] totals = totals();
+		out.write("total,,,," + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStart) + "," +
+				totals[0] + "," + totals[1] + "," + totals[2] + "," + totals[3] + "," + totals[4] + "," + peakHeap() + "\n");
+	}
+
+	private void writeJson(Writer out, long conceptsRemodelled) throws IOException {
+		long[] totals = totals();
+		out.write("{\n");
+		out.write("  \"totalMillis\": " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStart) + ",\n");
+		out.write("  \"peakHeapBytes\": " + peakHeap() + ",\n");
+		out.write("  \"conceptsRemodelled\": " + conceptsRemodelled + ",\n");
+		out.write("  \"totals\": { \"bytesInflated\": " + totals[0] + ", \"rowsRead\": " + totals[1] + ", \"rowsRewritten\": " + totals[2] +
+				", \"rowsWritten\": " + totals[3] + ", \"preFilterMisses\": " + totals[4] + " },\n");
+		out.write("  \"phases\": [\n");
+		for (int i = 0; i < phases.size(); i++) {
+			Phase phase = phases.get(i);
+			out.write("    { \"name\": " + json(phase.name) + ", \"millis\": " + TimeUnit.NANOSECONDS.toMillis(phase.nanos) +
+					", \"heapUsedBytes\": " + phase.heapUsed + " }" + (i < phases.size() - 1 ? "," : "") + "\n");
+		}
+		out.write("  ],\n");
+		out.write("  \"entries\": [\n");
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			long millis = TimeUnit.NANOSECONDS.toMillis(entry.nanos);
+			out.write("    { \"phase\": " + json(entry.phase) + ", \"archive\": " + json(entry.archive) + ", \"path\": " + json(entry.path.toString()) +
+					", \"millis\": " + millis + ", \"bytesInflated\": " + entry.bytesInflated + ", \"rowsRead\": " + entry.rowsRead +
+					", \"rowsPerSecond\": " + (millis == 0 ? 0 : entry.rowsRead * 1000 / millis) + ", \"rowsRewritten\": " + entry.rowsRewritten +
+					", \"rowsWritten\": " + entry.rowsWritten + ", \"preFilterMisses\": " + entry.preFilterMisses + " }" + (i < entries.size() - 1 ? "," : "") + "\n");
+		}
+		out.write("  ]\n");
+		out.write("}\n");
+	}
+
+	private static String json(String str) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : str.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String csv(String str) {
+		return str.contains(",") || str.contains("\"") ? "\"" + str.replace("\"", "\"\"") + "\"" : str;
+	}
+
+	/**
+	 * Counts the bytes read through it, so we know how much of an archive entry was inflated
+	 */
+	static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream (InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
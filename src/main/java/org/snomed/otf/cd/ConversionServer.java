@@ -0,0 +1,141 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps a dependency read and converted in memory, and converts deltas of it as they're posted,
+ * so that a daily delta costs neither JVM start up nor another pass over the dependency.
+ * Listens on the loopback interface only:
+ *   POST /convert with a delta archive as the body returns the converted delta archive, or 422
+ *     with the validation failures if any axioms couldn't be converted
+ *   GET /status returns what's been loaded and how many deltas have been converted
+ */
+class ConversionServer {
+
+	private final CdConversion conversion;
+	private final DependencyBaseline baseline;
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	private final AtomicInteger converted = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	ConversionServer (CdConversion conversion, int port) throws IOException {
+		this.conversion = conversion;
+		CdConversion.info("Loading " + conversion.getDependency().getName() + " to serve conversions of its deltas");
+		baseline = conversion.buildBaseline();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/convert", this::convert);
+		server.createContext("/status", this::status);
+		server.setExecutor(executor);
+	}
+
+	void start() {
+		server.start();
+		CdConversion.info("Serving conversions on http://localhost:" + getPort() + "/convert");
+	}
+
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	void stop() throws IOException {
+		server.stop(0);
+		executor.shutdownNow();
+		baseline.close();
+	}
+
+	private void convert(HttpExchange exchange) throws IOException {
+		if (!exchange.getRequestMethod().equals("POST")) {
+			respond(exchange, 405, "Post a delta archive to convert it");
+			return;
+		}
+		File delta = File.createTempFile("cd-posted-delta-", ".zip");
+		File output = File.createTempFile("cd-converted-", ".zip");
+		boolean headersSent = false;
+		try {
+			try (InputStream body = exchange.getRequestBody()) {
+				Files.copy(body, delta.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+			}
+			String problem = checkDelta(delta);
+			if (problem != null) {
+				headersSent = true;
+				respond(exchange, 400, problem);
+				failed.incrementAndGet();
+				return;
+			}
+			long start = System.currentTimeMillis();
+			List<String> violations = conversion.convertDelta(baseline, delta, output);
+			if (!violations.isEmpty()) {
+				headersSent = true;
+				respond(exchange, 422, violations.size() + " axioms failed validation:\n" + String.join("\n", violations));
+				failed.incrementAndGet();
+				return;
+			}
+			CdConversion.info("Converted posted delta in " + (System.currentTimeMillis() - start) + "ms");
+			exchange.getResponseHeaders().set("Content-Type", "application/zip");
+			headersSent = true;
+			exchange.sendResponseHeaders(200, output.length());
+			try (OutputStream os = exchange.getResponseBody()) {
+				Files.copy(output.toPath(), os);
+			}
+			converted.incrementAndGet();
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			if (headersSent) {
+				//Too late to tell the client, who'll see the response cut short
+				CdConversion.warn("Failed to send converted delta: " + e);
+				exchange.close();
+			} else {
+				CdConversion.warn("Failed to convert posted delta: " + e);
+				respond(exchange, 500, "Failed to convert delta: " + e.getMessage());
+			}
+		} finally {
+			delta.delete();
+			output.delete();
+		}
+	}
+
+	/**
+	 * @return why the posted file can't be converted, or null if it can
+	 */
+	private String checkDelta(File delta) {
+		try (ZipFile zip = new ZipFile(delta)) {
+			for (ZipEntry ze : Collections.list(zip.entries())) {
+				String fileName = new File(ze.getName()).getName();
+				if (fileName.startsWith(CdConversion.OWL_PREFIX) && fileName.contains(CdConversion.DELTA + "_")) {
+					return null;
+				}
+			}
+			return "No stated OWL delta file found in the posted archive";
+		} catch (IOException e) {
+			return "The posted file is not a zip archive";
+		}
+	}
+
+	private void status(HttpExchange exchange) throws IOException {
+		respond(exchange, 200, "{ \"dependency\": \"" + conversion.getDependency().getName() + "\", \"numberConcepts\": " + baseline.numberValues.size() +
+				", \"convertedAxioms\": " + baseline.convertedOWL.size() + ", \"deltasConverted\": " + converted.get() + ", \"deltasFailed\": " + failed.get() + " }");
+	}
+
+	private void respond(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+}
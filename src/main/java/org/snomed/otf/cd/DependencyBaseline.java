@@ -0,0 +1,53 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * What's found in and converted from a dependency once, to be shared read-only by the conversions
+ * of the extensions built on it: its number concepts and numeric terms, the values it determined
+ * for them, and its converted OWL rows.  The concepts its axioms use as attribute values are kept
+ * too, so that an extension whose numbers would convert those axioms differently can be spotted.
+ * Its OWL files stay spooled in case one does, and are deleted on close unless they're
+ * the files of an extracted archive.
+ */
+class DependencyBaseline implements Closeable {
+
+	final NumberConceptIndex numbers;
+	final SctidMap<String> numberValues;
+	final Map<String, String[]> convertedOWL;  //In member id order
+	final LongSet valuesUsed;
+	final List<CdConversion.DeferredEntry> owlEntries;
+	final InferredRelationshipChanges inferred;
+
+	DependencyBaseline (NumberConceptIndex numbers, SctidMap<String> numberValues, Map<String, String[]> convertedOWL,
+			LongSet valuesUsed, List<CdConversion.DeferredEntry> owlEntries, InferredRelationshipChanges inferred) {
+		this.numbers = numbers;
+		this.numberValues = numberValues;
+		this.convertedOWL = Collections.unmodifiableMap(convertedOWL);
+		this.valuesUsed = valuesUsed;
+		this.owlEntries = Collections.unmodifiableList(new ArrayList<>(owlEntries));
+		this.inferred = inferred;
+	}
+
+	/**
+	 * @return true if the dependency's axioms would be converted just the same with the given
+	 * values, ie none of the concepts they use has gained, lost or changed a value
+	 */
+	boolean isValidFor(SctidMap<String> conceptNumberMap) {
+		for (long concept : valuesUsed.keys()) {
+			if (conceptNumberMap.containsKey(concept) != numberValues.containsKey(concept) ||
+					!Objects.equals(conceptNumberMap.get(concept), numberValues.get(concept))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (CdConversion.DeferredEntry entry : owlEntries) {
+			entry.discard();
+		}
+	}
+}
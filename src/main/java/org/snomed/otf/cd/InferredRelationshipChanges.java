@@ -0,0 +1,122 @@
+package org.snomed.otf.cd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * The inferred relationships whose type is one of the mapped attributes, as found in a set of
+ * archives, from which the classifier's part of the remodel can be worked out without running it.
+ * Each one whose target is a number concept with a known value is inactivated, and replaced by
+ * a concrete value of the mapped attribute type in the same group.  As with the stated axioms,
+ * a concept is changed all or nothing: if any of its relationships has a target without a value,
+ * none of them are.
+ */
+class InferredRelationshipChanges {
+
+	static final String INFERRED = "900000000000011006";
+	static final String CONCRETE_VALUES_PREFIX = "sct2_RelationshipConcreteValues_";
+	static final String[] RELATIONSHIP_HEADER = new String[] { "id", "effectiveTime", "active", "moduleId", "sourceId",
+			"destinationId", "relationshipGroup", "typeId", "characteristicTypeId", "modifierId" };
+	static final String[] CONCRETE_VALUES_HEADER = new String[] { "id", "effectiveTime", "active", "moduleId", "sourceId",
+			"value", "relationshipGroup", "typeId", "characteristicTypeId", "modifierId" };
+	private static final int IDX_MODULE = 3, IDX_GROUP = 6, IDX_CHARACTERISTIC_TYPE = 8, IDX_MODIFIER = 9;
+
+	private static class Relationship {
+		final String[] fields;
+		final boolean held;  //A delta row that would otherwise have been passed through
+
+		Relationship (String[] fields, boolean held) {
+			this.fields = fields;
+			this.held = held;
+		}
+	}
+
+	private final SctidMap<String> attributeTypeMap;
+	private final SctidMap<Relationship> relationships = new SctidMap<>();
+	private int inactivated = 0;
+	private int conceptsSkipped = 0;
+
+	InferredRelationshipChanges (SctidMap<String> attributeTypeMap) {
+		this.attributeTypeMap = attributeTypeMap;
+	}
+
+	/**
+	 * @return true if the row the cursor is on is an inferred relationship of a mapped attribute type,
+	 * active or not, with an id that can be told apart from the others
+	 */
+	boolean isCandidate(ArchiveLines lines) {
+		return lines.fieldEquals(IDX_CHARACTERISTIC_TYPE, INFERRED) && attributeTypeMap.containsKey(lines.getSctid(CdConversion.IDX_TYPE)) &&
+				lines.getSctid(CdConversion.IDX_ID) != SctidMap.NOT_AN_SCTID;
+	}
+
+	/**
+	 * @param held true if the row is from a delta being passed through, and so must be written out
+	 * by us whether it's changed or not
+	 */
+	void add(ArchiveLines lines, boolean held) {
+		relationships.put(lines.getSctid(CdConversion.IDX_ID), new Relationship(lines.getFields(), held));
+	}
+
+	/**
+	 * Adds everything from the other set, with its rows superseding ours
+	 */
+	void putAll(InferredRelationshipChanges other) {
+		for (long id : other.relationships.keys()) {
+			relationships.put(id, other.relationships.get(id));
+		}
+	}
+
+	/**
+	 * Writes the inactivations and concrete values in relationship id order, along with any
+	 * held rows that don't need to change
+	 */
+	void write(SctidMap<String> conceptNumberMap, SpillingRowStore.RowWriter relationshipWriter,
+			SpillingRowStore.RowWriter concreteValueWriter) throws IOException {
+		long[] ids = relationships.keys();
+		Arrays.sort(ids);
+		//Concepts with a target that has no value are left as they are, as their stated axioms will be
+		Set<String> unconverted = new HashSet<>();
+		for (long id : ids) {
+			String[] fields = relationships.get(id).fields;
+			if (fields[CdConversion.IDX_ACTIVE].equals("1") && conceptNumberMap.get(SctidMap.toSctid(fields[CdConversion.IDX_TARGET])) == null) {
+				unconverted.add(fields[CdConversion.IDX_SOURCE]);
+			}
+		}
+		conceptsSkipped = unconverted.size();
+		for (long id : ids) {
+			Relationship relationship = relationships.get(id);
+			String[] fields = relationship.fields;
+			String value = fields[CdConversion.IDX_ACTIVE].equals("1") && !unconverted.contains(fields[CdConversion.IDX_SOURCE]) ?
+					conceptNumberMap.get(SctidMap.toSctid(fields[CdConversion.IDX_TARGET])) : null;
+			if (value == null) {
+				if (relationship.held) {
+					relationshipWriter.write(fields);
+				}
+				continue;
+			}
+			String[] inactivation = fields.clone();
+			inactivation[CdConversion.IDX_EFFECTIVE_TIME] = "";
+			inactivation[CdConversion.IDX_ACTIVE] = "0";
+			relationshipWriter.write(inactivation);
+
+			//Named after the relationship it replaces, so that it's the same from one run to the next
+			String concreteId = UUID.nameUUIDFromBytes((CONCRETE_VALUES_PREFIX + fields[CdConversion.IDX_ID]).getBytes(StandardCharsets.UTF_8)).toString();
+			concreteValueWriter.write(new String[] { concreteId, "", "1", fields[IDX_MODULE], fields[CdConversion.IDX_SOURCE], "#" + value,
+					fields[IDX_GROUP], attributeTypeMap.get(SctidMap.toSctid(fields[CdConversion.IDX_TYPE])), fields[IDX_CHARACTERISTIC_TYPE], fields[IDX_MODIFIER] });
+			inactivated++;
+		}
+	}
+
+	int size() {
+		return relationships.size();
+	}
+
+	int getInactivated() {
+		return inactivated;
+	}
+
+	int getConceptsSkipped() {
+		return conceptsSkipped;
+	}
+}
@@ -0,0 +1,102 @@
+package org.snomed.otf.cd;
+
+/**
+ * Open addressing map from SCTIDs to int, without boxing either.  As an SCTID is
+ * never zero, that's used to mark an empty slot.
+ */
+class LongIntMap {
+	
+	public static final int NOT_FOUND = -1;
+	private static final long EMPTY = 0;
+	private static final float LOAD_FACTOR = 0.5f;
+	
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+	private int mask;
+	
+	LongIntMap () {
+		this(16);
+	}
+	
+	LongIntMap (int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int)(expectedSize / LOAD_FACTOR)) - 1) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+	
+	/**
+	 * @return the value held for the key, or NOT_FOUND
+	 */
+	int get(long key) {
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return NOT_FOUND;
+	}
+	
+	boolean containsKey(long key) {
+		return get(key) != NOT_FOUND;
+	}
+	
+	void put(long key, int value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("0 is not a valid SCTID");
+		}
+		int slot = slot(key);
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > keys.length * LOAD_FACTOR) {
+			resize();
+		}
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * @return the keys currently held, in no particular order
+	 */
+	long[] keys() {
+		long[] result = new long[size];
+		int i = 0;
+		for (long key : keys) {
+			if (key != EMPTY) {
+				result[i++] = key;
+			}
+		}
+		return result;
+	}
+	
+	private void resize() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		mask = keys.length - 1;
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+	
+	private int slot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+}
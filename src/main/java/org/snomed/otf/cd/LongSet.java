@@ -0,0 +1,33 @@
+package org.snomed.otf.cd;
+
+/**
+ * Open addressing set of SCTIDs, held as primitive longs
+ */
+class LongSet {
+	
+	private final LongIntMap map;
+	
+	LongSet () {
+		map = new LongIntMap();
+	}
+	
+	LongSet (int expectedSize) {
+		map = new LongIntMap(expectedSize);
+	}
+	
+	void add(long sctId) {
+		map.put(sctId, 0);
+	}
+	
+	boolean contains(long sctId) {
+		return map.containsKey(sctId);
+	}
+	
+	int size() {
+		return map.size();
+	}
+	
+	long[] keys() {
+		return map.keys();
+	}
+}
@@ -0,0 +1,144 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An RF2 file on local disk, eg from an extracted release, read through memory mapped regions
+ * of the file.  Its bytes go from the page cache into the row buffer in bulk, with no inflating
+ * or character decoding on the way.  It can also be divided into ranges that start and end on
+ * line boundaries, so that the rows of a large file can be parsed in parallel.
+ */
+class MappedRF2File {
+
+	//A single mapping can't exceed 2GB, so larger files are mapped a region at a time
+	static final long REGION_SIZE = 256L * 1024 * 1024;
+
+	private final Path file;
+	private final long size;
+	private final long regionSize;
+
+	MappedRF2File (Path file) throws IOException {
+		this(file, REGION_SIZE);
+	}
+
+	MappedRF2File (Path file, long regionSize) throws IOException {
+		this.file = file;
+		this.regionSize = regionSize;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	InputStream open() throws IOException {
+		return open(0, size);
+	}
+
+	/**
+	 * @return the bytes of the file from start up to, but not including, end
+	 */
+	InputStream open(long start, long end) throws IOException {
+		return new RegionInputStream(FileChannel.open(file, StandardOpenOption.READ), start, end);
+	}
+
+	/**
+	 * @return the offsets dividing the file into at most the given number of ranges of
+	 * roughly equal size, starting with 0 and ending with the file size.  Each range ends
+	 * just after a line terminator, or at the end of the file.
+	 */
+	long[] split(int parts) throws IOException {
+		long[] offsets = new long[parts + 1];
+		int count = 1;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			for (int i = 1; i < parts; i++) {
+				long offset = Math.max(size * i / parts, offsets[count - 1]);
+				offset = nextLineStart(channel, offset);
+				if (offset > offsets[count - 1] && offset < size) {
+					offsets[count++] = offset;
+				}
+			}
+		}
+		offsets[count++] = size;
+		return Arrays.copyOf(offsets, count);
+	}
+
+	private long nextLineStart(FileChannel channel, long offset) throws IOException {
+		while (offset < size) {
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(64 * 1024, size - offset));
+			while (region.hasRemaining()) {
+				offset++;
+				if (region.get() == '\n') {
+					return offset;
+				}
+			}
+		}
+		return size;
+	}
+
+	private class RegionInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+		private MappedByteBuffer region;
+
+		RegionInputStream (FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		/**
+		 * @return false once the end of the range has been reached
+		 */
+		private boolean ensureRegion() throws IOException {
+			if (region != null && region.hasRemaining()) {
+				return true;
+			}
+			if (position >= end) {
+				return false;
+			}
+			long length = Math.min(regionSize, end - position);
+			region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			position += length;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return ensureRegion() ? region.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!ensureRegion()) {
+				return -1;
+			}
+			int read = Math.min(len, region.remaining());
+			region.get(b, off, read);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return region == null ? 0 : region.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			//The mapping stays valid until it's collected, but the channel needn't
+			region = null;
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The number concepts and candidate numeric terms found in a set of archives, before it's known
+ * which terms belong to number concepts.  This can be saved against a key derived from the
+ * archives it came from, so that a later run against the same snapshots can skip their
+ * Relationship and Description files altogether.
+ */
+class NumberConceptIndex {
+
+	private static final int FORMAT_VERSION = 1;
+
+	private final LongSet numberConcepts = new LongSet();
+	private final SctidMap<String> numericTerms = new SctidMap<>();
+
+	void addNumberConcept(long sctId) {
+		numberConcepts.add(sctId);
+	}
+
+	void addNumericTerm(long conceptId, String term) {
+		numericTerms.put(conceptId, term);
+	}
+
+	/**
+	 * Adds everything from the other index, with its terms taking precedence over ours
+	 */
+	void putAll(NumberConceptIndex other) {
+		for (long numberConcept : other.numberConcepts.keys()) {
+			numberConcepts.add(numberConcept);
+		}
+		for (long conceptId : other.numericTerms.keys()) {
+			numericTerms.put(conceptId, other.numericTerms.get(conceptId));
+		}
+	}
+
+	long[] getNumberConcepts() {
+		return numberConcepts.keys();
+	}
+
+	long[] getNumericTermConcepts() {
+		return numericTerms.keys();
+	}
+
+	String getNumericTerm(long conceptId) {
+		return numericTerms.get(conceptId);
+	}
+
+	void save(File file) throws IOException {
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		//Write alongside and move into place, so an interrupted run can't leave a partial index
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(FORMAT_VERSION);
+			long[] concepts = numberConcepts.keys();
+			out.writeInt(concepts.length);
+			for (long concept : concepts) {
+				out.writeLong(concept);
+			}
+			long[] termConcepts = numericTerms.keys();
+			out.writeInt(termConcepts.length);
+			for (long conceptId : termConcepts) {
+				out.writeLong(conceptId);
+				out.writeUTF(numericTerms.get(conceptId));
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the index saved in the file, or null if there isn't one we can use
+	 */
+	static NumberConceptIndex load(File file) throws IOException {
+		if (!file.canRead()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+			NumberConceptIndex index = new NumberConceptIndex();
+			int conceptCount = in.readInt();
+			for (int i = 0; i < conceptCount; i++) {
+				index.addNumberConcept(in.readLong());
+			}
+			int termCount = in.readInt();
+			for (int i = 0; i < termCount; i++) {
+				index.addNumericTerm(in.readLong(), in.readUTF());
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * The key is a hash of the archives' sizes along with the name, size and CRC of every
+	 * entry, taken from each zip's central directory.  This identifies the content without
+	 * having to read or inflate the archive itself.  An extracted archive directory has no CRCs
+	 * to hand, so the name, size and modification time of each of its files are used instead.
+	 * @return a hex key for the archives given, ignoring any that are null
+	 */
+	static String archiveKey(File... archives) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (File archive : archives) {
+				if (archive == null) {
+					continue;
+				}
+				if (archive.isDirectory()) {
+					List<Path> files;
+					try (Stream<Path> walk = Files.walk(archive.toPath())) {
+						files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+					}
+					for (Path file : files) {
+						String fileKey = archive.toPath().relativize(file).toString().replace(File.separatorChar, '/') + "|" + 
+								Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis() + "\n";
+						digest.update(fileKey.getBytes(StandardCharsets.UTF_8));
+					}
+					digest.update((byte) 0);
+					continue;
+				}
+				digest.update(Long.toString(archive.length()).getBytes(StandardCharsets.UTF_8));
+				try (ZipFile zip = new ZipFile(archive)) {
+					Enumeration<? extends ZipEntry> entries = zip.entries();
+					while (entries.hasMoreElements()) {
+						ZipEntry ze = entries.nextElement();
+						String entryKey = ze.getName() + "|" + ze.getSize() + "|" + ze.getCrc() + "\n";
+						digest.update(entryKey.getBytes(StandardCharsets.UTF_8));
+					}
+				}
+				digest.update((byte) 0);
+			}
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest()) {
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+}
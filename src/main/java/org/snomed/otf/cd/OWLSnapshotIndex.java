@@ -0,0 +1,294 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * The OWL axioms of the snapshot archives, extracted to a single file with just the latest version
+ * of each row, along with sorted indexes to the offset of each row by member id, by referenced
+ * component, and by every concept used as the value of a mapped attribute in an active row.
+ * This lets a delta be converted by reading only the snapshot axioms its number concepts affect,
+ * and the axioms of chosen concepts be converted without reading the rest.  Like the
+ * NumberConceptIndex, it's built once and saved against a key derived from the archives
+ * and the attribute map.
+ *
+ * Both files are memory mapped, so lookups only page in the parts of them they touch.
+ */
+class OWLSnapshotIndex {
+
+	private static final long FORMAT_VERSION = 2;
+	private static final int HEADER_LONGS = 5;  //Version, rows file length, then the size of each section
+
+	private final File rowsFile;
+	private final ByteBuffer rows;
+	//Each section is a sorted run of fixed width entries, the last long of which is the row offset
+	private final Section values;
+	private final Section components;
+	private final Section ids;
+
+	private OWLSnapshotIndex (File rowsFile, ByteBuffer rows, LongBuffer index) {
+		this.rowsFile = rowsFile;
+		this.rows = rows;
+		int valueCount = (int) index.get(2);
+		int componentCount = (int) index.get(3);
+		int idCount = (int) index.get(4);
+		int start = HEADER_LONGS;
+		values = new Section(index, start, valueCount, 1);
+		start += valueCount * 2;
+		components = new Section(index, start, componentCount, 1);
+		start += componentCount * 2;
+		ids = new Section(index, start, idCount, 2);
+	}
+
+	private static File rowsFile(File dir, String key) {
+		return new File(dir, "owl-snapshot-" + key + ".txt");
+	}
+
+	private static File indexFile(File dir, String key) {
+		return new File(dir, "owl-snapshot-" + key + ".idx");
+	}
+
+	File getRowsFile() {
+		return rowsFile;
+	}
+
+	/**
+	 * Extracts the rows of the given OWL files, taken in archive order so that later files
+	 * override earlier ones, and indexes them.
+	 * @param attributeValues picks out the concepts used as values of mapped attributes in an axiom
+	 */
+	static OWLSnapshotIndex build(File dir, String key, List<Path> owlFiles, Function<String, long[]> attributeValues) throws IOException {
+		dir.mkdirs();
+		File rowsFile = rowsFile(dir, key);
+		List<long[]> valueEntries = new ArrayList<>();
+		List<long[]> componentEntries = new ArrayList<>();
+		List<long[]> idEntries = new ArrayList<>();
+		int unindexedIds = 0;
+		//Later files are read first, so the rows they supersede can be recognised and dropped
+		Set<String> seenIds = owlFiles.size() > 1 ? new HashSet<String>() : null;
+		File tmp = new File(rowsFile.getPath() + ".tmp");
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024)) {
+			long offset = 0;
+			for (int i = owlFiles.size() - 1; i >= 0; i--) {
+				try (InputStream is = Files.newInputStream(owlFiles.get(i))) {
+					ArchiveLines lines = new ArchiveLines(is);
+					while (lines.next()) {
+						if (lines.fieldEquals(CdConversion.IDX_ID, "id")) {
+							continue;
+						}
+						String id = lines.getField(CdConversion.IDX_ID);
+						if (seenIds != null && !seenIds.add(id)) {
+							continue;
+						}
+						UUID uuid = toUUID(id);
+						if (uuid != null) {
+							idEntries.add(new long[] { uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), offset });
+						} else {
+							unindexedIds++;
+						}
+						long component = lines.getSctid(CdConversion.IDX_REFCOMPID);
+						if (component != SctidMap.NOT_AN_SCTID) {
+							componentEntries.add(new long[] { component, offset });
+						}
+						if (lines.fieldEquals(CdConversion.IDX_ACTIVE, "1") && lines.hasField(CdConversion.IDX_OWL_EXPRESSION)) {
+							for (long value : attributeValues.apply(lines.getField(CdConversion.IDX_OWL_EXPRESSION))) {
+								valueEntries.add(new long[] { value, offset });
+							}
+						}
+						int length = lines.getLineEnd() - lines.getLineStart();
+						out.write(lines.getBuffer(), lines.getLineStart(), length);
+						out.write('\n');
+						offset += length + 1;
+					}
+				}
+			}
+		}
+		Files.move(tmp.toPath(), rowsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (unindexedIds > 0) {
+			CdConversion.warn(unindexedIds + " OWL rows have an id that isn't a UUID, so can't be looked up by id");
+		}
+
+		//Written last, so its presence means the rows file is complete
+		File indexFile = indexFile(dir, key);
+		File indexTmp = new File(indexFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTmp)))) {
+			out.writeLong(FORMAT_VERSION);
+			out.writeLong(rowsFile.length());
+			out.writeLong(valueEntries.size());
+			out.writeLong(componentEntries.size());
+			out.writeLong(idEntries.size());
+			writeSorted(out, valueEntries);
+			writeSorted(out, componentEntries);
+			writeSorted(out, idEntries);
+		}
+		Files.move(indexTmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return load(dir, key);
+	}
+
+	private static void writeSorted(DataOutputStream out, List<long[]> entries) throws IOException {
+		Collections.sort(entries, (a, b) -> {
+			for (int i = 0; i < a.length; i++) {
+				if (a[i] != b[i]) {
+					return Long.compare(a[i], b[i]);
+				}
+			}
+			return 0;
+		});
+		for (long[] entry : entries) {
+			for (long l : entry) {
+				out.writeLong(l);
+			}
+		}
+	}
+
+	/**
+	 * @return the index saved under the given key, or null if there isn't one we can use
+	 */
+	static OWLSnapshotIndex load(File dir, String key) throws IOException {
+		File indexFile = indexFile(dir, key);
+		File rowsFile = rowsFile(dir, key);
+		if (!indexFile.canRead() || !rowsFile.canRead()) {
+			return null;
+		}
+		LongBuffer index = map(indexFile).asLongBuffer();
+		if (index.limit() < HEADER_LONGS || index.get(0) != FORMAT_VERSION || index.get(1) != rowsFile.length()) {
+			return null;
+		}
+		return new OWLSnapshotIndex(rowsFile, map(rowsFile), index);
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to be memory mapped");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/**
+	 * @return the offsets of the active rows using any of the given concepts as an attribute value,
+	 * in file order and without duplicates
+	 */
+	long[] findRowsUsing(long[] concepts) {
+		return values.find(concepts);
+	}
+
+	/**
+	 * @return the offsets of the rows, active or not, for any of the given referenced components,
+	 * in file order and without duplicates
+	 */
+	long[] findRowsFor(long[] referencedComponents) {
+		return components.find(referencedComponents);
+	}
+
+	/**
+	 * @return the offset of the row with the given member id, or -1 if there isn't one
+	 */
+	long findRow(String id) {
+		UUID uuid = toUUID(id);
+		if (uuid == null) {
+			return -1;
+		}
+		long[] found = ids.find(new long[] { uuid.getMostSignificantBits(), uuid.getLeastSignificantBits() });
+		return found.length == 0 ? -1 : found[0];
+	}
+
+	/**
+	 * Passes the rows at the given offsets to the writer, in the order given
+	 */
+	void readRows(long[] rowOffsets, SpillingRowStore.RowWriter writer) throws IOException {
+		//A view of our own, so that reads don't disturb any other
+		ByteBuffer view = rows.duplicate();
+		byte[] bytes = new byte[8 * 1024];
+		for (long offset : rowOffsets) {
+			int start = (int) offset;
+			int end = start;
+			while (end < view.limit() && view.get(end) != '\n') {
+				end++;
+			}
+			if (end == view.limit()) {
+				throw new EOFException("Unterminated row at " + offset + " in " + rowsFile);
+			}
+			if (end - start > bytes.length) {
+				bytes = new byte[end - start];
+			}
+			view.position(start);
+			view.get(bytes, 0, end - start);
+			writer.write(new String(bytes, 0, end - start, StandardCharsets.UTF_8).split(CdConversion.FIELD_DELIMITER));
+		}
+	}
+
+	static UUID toUUID(String id) {
+		if (id.length() != 36) {
+			return null;
+		}
+		try {
+			return UUID.fromString(id);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A sorted run of entries in the mapped index, each a key of one or more longs followed by an offset
+	 */
+	private static class Section {
+		final LongBuffer index;
+		final int start, count, keyWidth;
+
+		Section (LongBuffer index, int start, int count, int keyWidth) {
+			this.index = index;
+			this.start = start;
+			this.count = count;
+			this.keyWidth = keyWidth;
+		}
+
+		private int compare(int entry, long[] key, int keyIdx) {
+			int pos = start + entry * (keyWidth + 1);
+			for (int i = 0; i < keyWidth; i++) {
+				int cmp = Long.compare(index.get(pos + i), key[keyIdx + i]);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @param keys one or more keys, each keyWidth longs
+		 * @return the offsets of every entry matching any of the keys, sorted and without duplicates
+		 */
+		long[] find(long[] keys) {
+			TreeSet<Long> found = new TreeSet<>();
+			for (int keyIdx = 0; keyIdx < keys.length; keyIdx += keyWidth) {
+				//Find the first entry not less than the key, then take all those equal to it
+				int low = 0, high = count;
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					if (compare(mid, keys, keyIdx) < 0) {
+						low = mid + 1;
+					} else {
+						high = mid;
+					}
+				}
+				for (int entry = low; entry < count && compare(entry, keys, keyIdx) == 0; entry++) {
+					found.add(index.get(start + entry * (keyWidth + 1) + keyWidth));
+				}
+			}
+			long[] offsets = new long[found.size()];
+			int i = 0;
+			for (long offset : found) {
+				offsets[i++] = offset;
+			}
+			return offsets;
+		}
+	}
+}
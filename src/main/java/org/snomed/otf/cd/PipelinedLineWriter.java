@@ -0,0 +1,110 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Encodes and writes RF2 rows on a thread of its own, taking them in batches through a bounded
+ * queue so that the output overlaps with the conversion.  Lines are written in the order they
+ * were given, whichever thread gave them, and callers wait if the writer falls too far behind.
+ */
+class PipelinedLineWriter implements Closeable {
+
+	static final int BATCH_SIZE = 1024;
+	static final int QUEUE_BATCHES = 8;
+
+	private static class Batch {
+		final RF2FileWriter[] outs = new RF2FileWriter[BATCH_SIZE];
+		final String[][] rows = new String[BATCH_SIZE][];
+		final byte[][] lines = new byte[BATCH_SIZE][];  //Already encoded, where there's no row
+		int size;
+	}
+
+	private static final Batch END = new Batch();
+
+	private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+	private final Thread writer;
+	private Batch pending = new Batch();
+	private volatile Throwable failure;
+
+	PipelinedLineWriter () {
+		writer = new Thread(this::run, "rf2-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	synchronized void write(RF2FileWriter out, String[] fields) throws IOException {
+		add(out, fields, null);
+	}
+
+	/**
+	 * @param line the encoded line, without its line ending
+	 */
+	synchronized void write(RF2FileWriter out, byte[] line) throws IOException {
+		add(out, null, line);
+	}
+
+	private void add(RF2FileWriter out, String[] fields, byte[] line) throws IOException {
+		checkFailure();
+		pending.outs[pending.size] = out;
+		pending.rows[pending.size] = fields;
+		pending.lines[pending.size++] = line;
+		if (pending.size == BATCH_SIZE) {
+			handOver(pending);
+			pending = new Batch();
+		}
+	}
+
+	/**
+	 * Waits for everything given so far to be written, but leaves the writers open
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (pending.size > 0) {
+			handOver(pending);
+		}
+		handOver(END);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for output to be written", e);
+		}
+		checkFailure();
+	}
+
+	private void handOver(Batch batch) throws IOException {
+		try {
+			//Checking periodically, in case the writer has failed and stopped taking batches
+			while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while handing over output to be written", e);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Failed to write output", failure);
+		}
+	}
+
+	private void run() {
+		try {
+			Batch batch;
+			while ((batch = queue.take()) != END) {
+				for (int i = 0; i < batch.size; i++) {
+					if (batch.rows[i] != null) {
+						batch.outs[i].writeRow(batch.rows[i]);
+					} else {
+						batch.outs[i].writeLine(batch.lines[i], 0, batch.lines[i].length);
+					}
+				}
+			}
+		} catch (Throwable t) {
+			failure = t;
+		}
+	}
+}
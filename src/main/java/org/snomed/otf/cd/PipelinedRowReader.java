@@ -0,0 +1,110 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Reads and splits RF2 rows on a thread of its own, handing them over in batches through a
+ * bounded queue so that reading overlaps with whatever is done with the rows.  Rows are handled
+ * in the order they were read, on the calling thread, and the reader waits if it gets too far ahead.
+ */
+class PipelinedRowReader {
+
+	static final int BATCH_SIZE = 1024;
+	static final int QUEUE_BATCHES = 8;
+
+	interface RowFilter {
+		/**
+		 * Called on the reader thread with the cursor on a row
+		 * @return false if the row can be skipped without splitting it
+		 */
+		boolean isWanted(ArchiveLines lines);
+	}
+
+	private static class Batch {
+		final List<String[]> rows = new ArrayList<>(BATCH_SIZE);
+		int rowsRead, rowsSkipped;
+		boolean last;
+		Throwable failure;
+	}
+
+	private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+	private final InputStream is;
+	private final RowFilter filter;
+
+	PipelinedRowReader (InputStream is, RowFilter filter) {
+		this.is = is;
+		this.filter = filter;
+	}
+
+	/**
+	 * Hands every wanted row to the writer, in order, counting the rows read and skipped
+	 * against the given entry as each batch arrives.
+	 * @return the number of rows skipped by the filter
+	 */
+	long forEach(SpillingRowStore.RowWriter handler, ConversionMetrics.Entry entryMetrics) throws IOException {
+		Thread reader = new Thread(this::read, "rf2-reader");
+		reader.setDaemon(true);
+		reader.start();
+		long skipped = 0;
+		boolean complete = false;
+		try {
+			while (!complete) {
+				Batch batch = queue.take();
+				if (batch.failure instanceof IOException) {
+					throw (IOException) batch.failure;
+				} else if (batch.failure != null) {
+					throw new IOException("Failed to read rows", batch.failure);
+				}
+				if (entryMetrics != null) {
+					entryMetrics.rowsRead += batch.rowsRead;
+					entryMetrics.preFilterMisses += batch.rowsSkipped;
+				}
+				skipped += batch.rowsSkipped;
+				for (String[] fields : batch.rows) {
+					handler.write(fields);
+				}
+				complete = batch.last;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for rows", e);
+		} finally {
+			if (!complete) {
+				//Stop the reader if it's waiting on a queue nobody will empty
+				reader.interrupt();
+			}
+		}
+		return skipped;
+	}
+
+	private void read() {
+		Batch batch = new Batch();
+		try {
+			ArchiveLines lines = new ArchiveLines(is);
+			while (lines.next()) {
+				batch.rowsRead++;
+				if (filter.isWanted(lines)) {
+					batch.rows.add(lines.getFields());
+				} else {
+					batch.rowsSkipped++;
+				}
+				if (batch.rows.size() == BATCH_SIZE) {
+					queue.put(batch);
+					batch = new Batch();
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (Throwable t) {
+			batch.failure = t;
+		}
+		batch.last = true;
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			//Nobody is waiting for it any more
+		}
+	}
+}
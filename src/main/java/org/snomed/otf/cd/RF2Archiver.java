@@ -0,0 +1,124 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packages the converted RF2 files into one or more zip archives, each with its own entry
+ * filter.  A file is added to in several passes and a zip can only be written an entry at a
+ * time, so each file's rows are spooled to a temporary file as they're written.  Once every
+ * file is complete, each archive is written from the spooled files it wants.
+ */
+class RF2Archiver implements Closeable {
+
+	//The files the classification service needs, as selected by the daily build
+	public static final String CLASSIFICATION_FILTER = "*Concept*,*_Relationship*,*OWL*,*_cissccRefset_MRCMAttributeDomain*";
+
+	private final List<Target> targets = new ArrayList<>();
+	private final Map<String, SpooledEntry> entries = new TreeMap<>();
+
+	/**
+	 * @param filter comma separated glob patterns matched against file names, or null for all files
+	 */
+	void addArchive(File archive, String filter) {
+		targets.add(new Target(archive, filter));
+	}
+
+	boolean isEmpty() {
+		return targets.isEmpty();
+	}
+
+	/**
+	 * @return a channel that spools what's written to it for the named entry, or null if
+	 * none of the archives take the file
+	 */
+	synchronized WritableByteChannel newEntry(String entryName) throws IOException {
+		Path fileName = Paths.get(entryName).getFileName();
+		for (Target target : targets) {
+			if (target.accepts(fileName)) {
+				SpooledEntry entry = new SpooledEntry();
+				entries.put(entryName, entry);
+				return entry.channel;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes each archive from the entries it accepts, in name order.  The entries must have been closed.
+	 */
+	void write() throws IOException {
+		for (Target target : targets) {
+			try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target.archive)))) {
+				for (Map.Entry<String, SpooledEntry> entry : entries.entrySet()) {
+					if (target.accepts(Paths.get(entry.getKey()).getFileName())) {
+						if (entry.getValue().channel.isOpen()) {
+							throw new IllegalStateException(entry.getKey() + " is still being written");
+						}
+						zos.putNextEntry(new ZipEntry(entry.getKey()));
+						Files.copy(entry.getValue().spool, zos);
+						zos.closeEntry();
+					}
+				}
+			}
+			CdConversion.info("Written " + target.archive);
+		}
+	}
+
+	/**
+	 * Deletes the spooled entries, whether or not the archives were written
+	 */
+	@Override
+	public void close() throws IOException {
+		for (SpooledEntry entry : entries.values()) {
+			entry.channel.close();
+			Files.deleteIfExists(entry.spool);
+		}
+		entries.clear();
+	}
+
+	/**
+	 * A file's rows, held in a temporary file until the archives are written
+	 */
+	private static class SpooledEntry {
+		final Path spool;
+		final FileChannel channel;
+
+		SpooledEntry () throws IOException {
+			spool = Files.createTempFile("cd-entry-", ".txt");
+			spool.toFile().deleteOnExit();
+			channel = RF2FileWriter.open(spool);
+		}
+	}
+
+	private static class Target {
+		final File archive;
+		final List<PathMatcher> matchers = new ArrayList<>();
+
+		Target (File archive, String filter) {
+			this.archive = archive;
+			if (filter != null) {
+				for (String glob : filter.split(",")) {
+					matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob.trim()));
+				}
+			}
+		}
+
+		boolean accepts(Path fileName) {
+			if (matchers.isEmpty()) {
+				return true;
+			}
+			for (PathMatcher matcher : matchers) {
+				if (matcher.matches(fileName)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends RF2 rows to a file, encoding the fields as UTF-8 straight into a reusable buffer with
+ * tab and CRLF delimiters, which is written out through the file's channel in large blocks.
+ * The same bytes can go to more than one channel, eg the file and its entry in an archive.
+ * Unlike a PrintWriter, a failure to write is thrown rather than swallowed.  Not thread safe.
+ */
+class RF2FileWriter implements Closeable {
+
+	static final int BUFFER_SIZE = 256 * 1024;
+
+	private final WritableByteChannel[] channels;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+
+	RF2FileWriter (Path path) throws IOException {
+		this(open(path));
+	}
+
+	RF2FileWriter (WritableByteChannel... channels) {
+		this.channels = channels;
+	}
+
+	static FileChannel open(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Writes the fields tab separated, with nulls as empty fields, followed by CRLF
+	 */
+	void writeRow(String[] fields) throws IOException {
+		for (int x = 0; x < fields.length; x++) {
+			if (x > 0) {
+				put((byte) '\t');
+			}
+			if (fields[x] != null) {
+				encode(fields[x]);
+			}
+		}
+		put((byte) '\r');
+		put((byte) '\n');
+	}
+
+	/**
+	 * Writes a line that's already encoded, as read from another RF2 file, followed by CRLF
+	 */
+	void writeLine(byte[] bytes, int start, int end) throws IOException {
+		int length = end - start;
+		if (length > buffer.length - position) {
+			flush();
+			if (length > buffer.length) {
+				write(ByteBuffer.wrap(bytes, start, length));
+				length = 0;
+			}
+		}
+		System.arraycopy(bytes, start, buffer, position, length);
+		position += length;
+		put((byte) '\r');
+		put((byte) '\n');
+	}
+
+	private void put(byte b) throws IOException {
+		if (position == buffer.length) {
+			flush();
+		}
+		buffer[position++] = b;
+	}
+
+	private void encode(String str) throws IOException {
+		int length = str.length();
+		for (int i = 0; i < length; i++) {
+			//Room for the longest encoding, so that no check is needed between its bytes
+			if (position + 4 > buffer.length) {
+				flush();
+			}
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | c >> 6);
+				buffer[position++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, str.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+				buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+				buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+				buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				//Unpaired, replaced as the UTF-8 encoder would
+				buffer[position++] = '?';
+			} else {
+				buffer[position++] = (byte) (0xE0 | c >> 12);
+				buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+				buffer[position++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+	}
+
+	void flush() throws IOException {
+		write(ByteBuffer.wrap(buffer, 0, position));
+		position = 0;
+	}
+
+	private void write(ByteBuffer bytes) throws IOException {
+		for (WritableByteChannel channel : channels) {
+			ByteBuffer remaining = bytes.duplicate();
+			while (remaining.hasRemaining()) {
+				channel.write(remaining);
+			}
+		}
+	}
+
+	/**
+	 * Every channel is closed, even if writing to one fails
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		try {
+			flush();
+		} catch (IOException e) {
+			failure = e;
+		}
+		for (WritableByteChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				failure = failure == null ? e : failure;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
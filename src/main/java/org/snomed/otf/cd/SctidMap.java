@@ -0,0 +1,84 @@
+package org.snomed.otf.cd;
+
+import java.util.*;
+
+/**
+ * Map keyed on SCTIDs held as longs, with the values kept in a table alongside.  
+ * Null values may be stored.
+ */
+class SctidMap<V> {
+	
+	public static final long NOT_AN_SCTID = -1;
+	private static final int MAX_SCTID_LENGTH = 18;
+	
+	private final LongIntMap index = new LongIntMap();
+	private final List<V> values = new ArrayList<>();
+	
+	/**
+	 * @return the SCTID held in the given range, or NOT_AN_SCTID if it's not purely digits
+	 * or has a leading zero, which an SCTID never does
+	 */
+	static long toSctid(CharSequence str, int start, int end) {
+		if (end <= start || end - start > MAX_SCTID_LENGTH || str.charAt(start) == '0') {
+			return NOT_AN_SCTID;
+		}
+		long sctId = 0;
+		for (int i = start; i < end; i++) {
+			char c = str.charAt(i);
+			if (c < '0' || c > '9') {
+				return NOT_AN_SCTID;
+			}
+			sctId = sctId * 10 + (c - '0');
+		}
+		return sctId;
+	}
+	
+	static long toSctid(CharSequence str) {
+		return toSctid(str, 0, str.length());
+	}
+	
+	/**
+	 * @throws IllegalArgumentException if the string given is not an SCTID
+	 */
+	static long parseSctid(String str) {
+		long sctId = toSctid(str);
+		if (sctId == NOT_AN_SCTID) {
+			throw new IllegalArgumentException("'" + str + "' is not an SCTID");
+		}
+		return sctId;
+	}
+	
+	V get(long sctId) {
+		int idx = index.get(sctId);
+		return idx == LongIntMap.NOT_FOUND ? null : values.get(idx);
+	}
+	
+	boolean containsKey(long sctId) {
+		return index.containsKey(sctId);
+	}
+	
+	void put(long sctId, V value) {
+		int idx = index.get(sctId);
+		if (idx == LongIntMap.NOT_FOUND) {
+			index.put(sctId, values.size());
+			values.add(value);
+		} else {
+			values.set(idx, value);
+		}
+	}
+	
+	int size() {
+		return index.size();
+	}
+	
+	long[] keys() {
+		return index.keys();
+	}
+	
+	/**
+	 * @return the values held, including any nulls
+	 */
+	List<V> values() {
+		return Collections.unmodifiableList(values);
+	}
+}
@@ -0,0 +1,212 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Holds RF2 rows by id, in memory until their estimated size passes a budget, at which
+ * point they're sorted and written out to a run file on disk.  Only the ids, and which run
+ * each live row is in, are kept in memory after that, so the budget bounds the rows but not
+ * their ids.  Rows are read back as a merge of the runs, so the remainder is always returned
+ * in id order, whether or not it was spilled.  So that a merge never has too many files open,
+ * the runs are merged into one whenever there get to be MAX_RUNS of them.
+ */
+class SpillingRowStore implements Closeable {
+
+	interface RowWriter {
+		void write(String[] fields) throws IOException;
+	}
+
+	static final int MAX_RUNS = 64;
+	private static final int IN_MEMORY = -1;
+
+	private final long budgetBytes;
+	private final Map<String, Integer> locations = new HashMap<>();
+	private Map<String, String[]> memory = new HashMap<>();
+	private long memoryBytes = 0;
+	private final List<Path> runs = new ArrayList<>();
+
+	/**
+	 * @param budgetBytes how much heap the rows may take before they're spilled to disk
+	 */
+	SpillingRowStore (long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+
+	boolean containsKey(String id) {
+		return locations.containsKey(id);
+	}
+
+	void put(String id, String[] fields) throws IOException {
+		locations.put(id, IN_MEMORY);
+		String[] previous = memory.put(id, fields);
+		if (previous != null) {
+			memoryBytes -= estimateSize(previous);
+		}
+		memoryBytes += estimateSize(fields);
+		if (memoryBytes > budgetBytes) {
+			spill();
+		}
+	}
+
+	void remove(String id) {
+		locations.remove(id);
+		String[] previous = memory.remove(id);
+		if (previous != null) {
+			memoryBytes -= estimateSize(previous);
+		}
+	}
+
+	int size() {
+		return locations.size();
+	}
+
+	int getRunCount() {
+		return runs.size();
+	}
+
+	private static long estimateSize(String[] fields) {
+		long size = 16 + 4 * fields.length;
+		for (String field : fields) {
+			size += field == null ? 0 : 40 + 2 * field.length();
+		}
+		return size;
+	}
+
+	private void spill() throws IOException {
+		Path run = newRun();
+		int runIdx = runs.size();
+		runs.add(run);
+		try (BufferedWriter out = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, String[]> entry : new TreeMap<>(memory).entrySet()) {
+				writeRow(out, entry.getValue());
+				locations.put(entry.getKey(), runIdx);
+			}
+		}
+		memory = new HashMap<>();
+		memoryBytes = 0;
+		if (runs.size() >= MAX_RUNS) {
+			compact();
+		}
+	}
+
+	/**
+	 * Merges the live rows of every run into a single run
+	 */
+	private void compact() throws IOException {
+		Path merged = newRun();
+		List<String> ids = new ArrayList<>();
+		try (BufferedWriter out = Files.newBufferedWriter(merged, StandardCharsets.UTF_8)) {
+			merge(Collections.emptyIterator(), fields -> {
+				writeRow(out, fields);
+				ids.add(fields[CdConversion.IDX_ID]);
+			});
+		}
+		deleteRuns();
+		runs.add(merged);
+		//Only moved once the merge is done, as it goes by where each row was
+		for (String id : ids) {
+			locations.put(id, 0);
+		}
+	}
+
+	private static Path newRun() throws IOException {
+		Path run = Files.createTempFile("cd-owl-run-", ".txt");
+		run.toFile().deleteOnExit();
+		return run;
+	}
+
+	private static void writeRow(Writer out, String[] fields) throws IOException {
+		for (int x = 0; x < fields.length; x++) {
+			if (x > 0) {
+				out.write(CdConversion.FIELD_DELIMITER);
+			}
+			out.write(fields[x] == null ? "" : fields[x]);
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Passes every live row to the writer in id order, merging the runs on disk with
+	 * whatever is still held in memory.  Rows superseded or removed since they were spilled
+	 * are skipped.
+	 */
+	void writeAll(RowWriter writer) throws IOException {
+		merge(new TreeMap<>(memory).values().iterator(), writer);
+	}
+
+	private void merge(Iterator<String[]> inMemoryRows, RowWriter writer) throws IOException {
+		PriorityQueue<RunCursor> queue = new PriorityQueue<>();
+		List<InputStream> open = new ArrayList<>();
+		try {
+			for (int runIdx = 0; runIdx < runs.size(); runIdx++) {
+				InputStream is = Files.newInputStream(runs.get(runIdx));
+				open.add(is);
+				RunCursor cursor = new RunCursor(runIdx, new ArchiveLines(is).iterator());
+				if (cursor.advance()) {
+					queue.add(cursor);
+				}
+			}
+			RunCursor inMemory = new RunCursor(IN_MEMORY, inMemoryRows);
+			if (inMemory.advance()) {
+				queue.add(inMemory);
+			}
+
+			while (!queue.isEmpty()) {
+				RunCursor cursor = queue.poll();
+				String id = cursor.current[CdConversion.IDX_ID];
+				//A row is only current if it's in the place we last put it
+				Integer location = locations.get(id);
+				if (location != null && location == cursor.runIdx) {
+					writer.write(cursor.current);
+				}
+				if (cursor.advance()) {
+					queue.add(cursor);
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			for (InputStream is : open) {
+				is.close();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		deleteRuns();
+	}
+
+	private void deleteRuns() throws IOException {
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		runs.clear();
+	}
+
+	private static class RunCursor implements Comparable<RunCursor> {
+		final int runIdx;
+		final Iterator<String[]> rows;
+		String[] current;
+
+		RunCursor (int runIdx, Iterator<String[]> rows) {
+			this.runIdx = runIdx;
+			this.rows = rows;
+		}
+
+		boolean advance() {
+			current = rows.hasNext() ? rows.next() : null;
+			return current != null;
+		}
+
+		@Override
+		public int compareTo(RunCursor other) {
+			int cmp = current[CdConversion.IDX_ID].compareTo(other.current[CdConversion.IDX_ID]);
+			return cmp != 0 ? cmp : Integer.compare(runIdx, other.runIdx);
+		}
+	}
+}
@@ -0,0 +1,454 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a synthetic RF2 release for scale testing the conversion end to end, since production
+ * releases can't be shared.  The snapshot has Concept, Description, inferred Relationship and
+ * OWL expression files: a set of number concepts, each a child of 260299005 |Number| with its
+ * value as a synonym, and product concepts whose axioms use the attributes in the config file
+ * with number concepts as their values.  An extension, with its own namespace and number
+ * concepts, and an in-flight delta to the snapshot can optionally be written alongside.
+ *
+ * Every row is derived from a seed and its position, so nothing is held in memory and the
+ * same arguments always give the same archives, from thousands to tens of millions of rows.
+ */
+public class SyntheticReleaseGenerator {
+
+	static final String INT_MODULE = "900000000000207008";
+	static final String OWL_REFSET = "733073007";
+	static final String PRIMITIVE = "900000000000074008";
+	static final String FSN = "900000000000003001";
+	static final String SYNONYM = "900000000000013009";
+	static final String CASE_INSENSITIVE = "900000000000448009";
+	static final String INFERRED = "900000000000011006";
+	static final String EXISTENTIAL = "900000000000451002";
+	static final String ROLE_GROUP = "609096000";
+	static final String MEDICINAL_PRODUCT = "763158003";
+	static final String ROOT = "138875005";
+
+	static final String CONCEPT_HEADER = "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId";
+	static final String DESCRIPTION_HEADER = "id\teffectiveTime\tactive\tmoduleId\tconceptId\tlanguageCode\ttypeId\tterm\tcaseSignificanceId";
+	static final String RELATIONSHIP_HEADER = "id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\trelationshipGroup\ttypeId\tcharacteristicTypeId\tmodifierId";
+	static final String OWL_HEADER = "id\teffectiveTime\tactive\tmoduleId\trefsetId\treferencedComponentId\towlExpression";
+
+	//Attributes that aren't converted, with a typical value, to fill out the role groups
+	private static final String[][] OTHER_ATTRIBUTES = {
+		{ "411116001", "421026006" },
+		{ "732943007", "387517004" },
+		{ "732945000", "258684004" },
+		{ "732947008", "732936001" },
+		{ "762949000", "387517004" },
+		{ "763032000", "732936001" }
+	};
+
+	//Component identifiers are an item id plus these digits, then a check digit
+	private static final String CORE_CONCEPT = "00", CORE_DESCRIPTION = "01", CORE_RELATIONSHIP = "02";
+	private static final String EXTENSION_NAMESPACE = "1000003";
+	private static final String EXTENSION_CONCEPT = EXTENSION_NAMESPACE + "10";
+	private static final String EXTENSION_DESCRIPTION = EXTENSION_NAMESPACE + "11";
+	private static final String EXTENSION_RELATIONSHIP = EXTENSION_NAMESPACE + "12";
+	private static final long FIRST_ITEM = 100000;
+	private static final int DESCRIPTIONS_PER_CONCEPT = 4;  //FSN, synonym, and a replacement synonym in the delta
+	private static final int RELATIONSHIPS_PER_CONCEPT = 16;
+
+	private List<String> attributeTypes = new ArrayList<>();
+	private int conceptCount = 10000;
+	private double mappedDensity = 0.3;
+	private double deltaRate = 0.01;
+	private double extensionRate = 0.1;
+	private long seed = 1;
+	private String releaseDate = "20210131";
+	private String extensionDate = "20210430";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			exit("Usage: java -cp CdConversion.jar org.snomed.otf.cd.SyntheticReleaseGenerator -s <snapshot archive to write> [-e <extension archive to write>] [-d <delta archive to write>] " +
+					"[-n <number of concepts, default 10000>] [-x <proportion of concepts with mapped attributes, default 0.3>] [-dr <proportion changed in the delta, default 0.01>] " +
+					"[-er <extension size as a proportion of the snapshot, default 0.1>] [-seed <n>] [-c <config mapping file> or config.txt is used]");
+		}
+		SyntheticReleaseGenerator generator = new SyntheticReleaseGenerator();
+		File snapshot = null, extension = null, delta = null;
+		File config = new File("config.txt");
+		for (int x = 0; x < args.length - 1; x++) {
+			String thisArg = args[x];
+			if (thisArg.equals("-s")) {
+				snapshot = new File(args[x+1]);
+			} else if (thisArg.equals("-e")) {
+				extension = new File(args[x+1]);
+			} else if (thisArg.equals("-d")) {
+				delta = new File(args[x+1]);
+			} else if (thisArg.equals("-n")) {
+				generator.conceptCount = Integer.parseInt(args[x+1]);
+			} else if (thisArg.equals("-x")) {
+				generator.mappedDensity = Double.parseDouble(args[x+1]);
+			} else if (thisArg.equals("-dr")) {
+				generator.deltaRate = Double.parseDouble(args[x+1]);
+			} else if (thisArg.equals("-er")) {
+				generator.extensionRate = Double.parseDouble(args[x+1]);
+			} else if (thisArg.equals("-seed")) {
+				generator.seed = Long.parseLong(args[x+1]);
+			} else if (thisArg.equals("-c")) {
+				config = new File(args[x+1]);
+			}
+		}
+		if (snapshot == null) {
+			exit("The snapshot archive to write must at least be specified using the -s command line parameter");
+		}
+		generator.loadConfig(config);
+		generator.writeSnapshot(snapshot);
+		if (extension != null) {
+			generator.writeExtension(extension);
+		}
+		if (delta != null) {
+			generator.writeDelta(delta);
+		}
+	}
+
+	void loadConfig(File config) throws IOException {
+		try (BufferedReader br = new BufferedReader(new FileReader(config))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				attributeTypes.add(line.split(CdConversion.FIELD_DELIMITER)[0]);
+			}
+		}
+	}
+
+	void setSize(int conceptCount, double mappedDensity) {
+		this.conceptCount = conceptCount;
+		this.mappedDensity = mappedDensity;
+	}
+
+	/**
+	 * The content of one edition: its module and namespace, and how many number and product concepts it has.
+	 * Number concepts come first, then products, then any concepts the delta adds, numbers before products.
+	 */
+	private static class Content {
+		final String module, conceptSuffix, descriptionSuffix, relationshipSuffix, namespace;
+		final int numberCount, productCount, newNumbers;
+		final long memberIdPrefix;
+
+		Content (String module, String conceptSuffix, String descriptionSuffix, String relationshipSuffix, String namespace,
+				int numberCount, int productCount, int newNumbers, long memberIdPrefix) {
+			this.module = module;
+			this.conceptSuffix = conceptSuffix;
+			this.descriptionSuffix = descriptionSuffix;
+			this.relationshipSuffix = relationshipSuffix;
+			this.namespace = namespace;
+			this.numberCount = numberCount;
+			this.productCount = productCount;
+			this.newNumbers = newNumbers;
+			this.memberIdPrefix = memberIdPrefix;
+		}
+
+		int conceptCount() {
+			return numberCount + productCount;
+		}
+
+		boolean isNumber(int idx) {
+			return idx < numberCount || (idx >= conceptCount() && idx < conceptCount() + newNumbers);
+		}
+
+		/**
+		 * @return the nth number concept, counting any added by the delta after the snapshot's own
+		 */
+		String numberConcept(int n) {
+			return concept(n < numberCount ? n : conceptCount() + n - numberCount);
+		}
+
+		int numberPoolSize() {
+			return numberCount + newNumbers;
+		}
+
+		String concept(long idx) {
+			return sctid(FIRST_ITEM + idx, conceptSuffix);
+		}
+
+		String description(long idx, int n) {
+			return sctid(FIRST_ITEM + idx * DESCRIPTIONS_PER_CONCEPT + n, descriptionSuffix);
+		}
+
+		String relationship(long idx, int n) {
+			return sctid(FIRST_ITEM + idx * RELATIONSHIPS_PER_CONCEPT + n, relationshipSuffix);
+		}
+
+		String memberId(long idx) {
+			return new UUID(memberIdPrefix, idx).toString();
+		}
+	}
+
+	private Content international(int newNumbers) {
+		int numberCount = Math.max(20, conceptCount / 200);
+		return new Content(INT_MODULE, CORE_CONCEPT, CORE_DESCRIPTION, CORE_RELATIONSHIP, "INT",
+				numberCount, Math.max(0, conceptCount - numberCount), newNumbers, 0x5e7a000000004000L);
+	}
+
+	private Content extension() {
+		int extensionCount = Math.max(10, (int) (conceptCount * extensionRate));
+		int numberCount = Math.max(5, extensionCount / 200);
+		//The module concept comes just before the extension's own
+		return new Content(sctid(FIRST_ITEM - 1, EXTENSION_CONCEPT), EXTENSION_CONCEPT, EXTENSION_DESCRIPTION, EXTENSION_RELATIONSHIP, "XX1000003",
+				numberCount, extensionCount - numberCount, 0, 0x5e7a000000004001L);
+	}
+
+	/**
+	 * The value of a number concept: mostly whole numbers, with some decimals.  The delta's new values differ by version.
+	 */
+	static String numericValue(int idx, int version) {
+		int value = idx + 1 + version * 1000;
+		return idx % 4 == 3 ? (value / 4) + ".5" : Integer.toString(value);
+	}
+
+	/**
+	 * The role group of a product's axiom, as attribute and value pairs.  Changing the version
+	 * gives the same product a different definition, as an edit in the delta would.
+	 */
+	private List<String[]> productAttributes(Content content, int idx, int version, Content numbers) {
+		Random random = new Random(seed * 1000003L + content.memberIdPrefix + idx * 31L + version);
+		List<String[]> attributes = new ArrayList<>();
+		if (random.nextDouble() < mappedDensity && !attributeTypes.isEmpty()) {
+			int mapped = 1 + random.nextInt(3);
+			for (int i = 0; i < mapped; i++) {
+				String type = attributeTypes.get(random.nextInt(attributeTypes.size()));
+				//Extension products may use either their own number concepts or the international ones
+				Content source = content != numbers && random.nextBoolean() ? content : numbers;
+				attributes.add(new String[] { type, source.numberConcept(random.nextInt(source.numberPoolSize())) });
+			}
+		}
+		int others = 2 + random.nextInt(3);
+		for (int i = 0; i < others; i++) {
+			attributes.add(OTHER_ATTRIBUTES[random.nextInt(OTHER_ATTRIBUTES.length)]);
+		}
+		return attributes;
+	}
+
+	private static String productAxiom(String concept, List<String[]> attributes) {
+		StringBuilder sb = new StringBuilder("EquivalentClasses(:").append(concept)
+				.append(" ObjectIntersectionOf(:").append(MEDICINAL_PRODUCT)
+				.append(" ObjectSomeValuesFrom(:").append(ROLE_GROUP).append(" ObjectIntersectionOf(");
+		for (int i = 0; i < attributes.size(); i++) {
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append("ObjectSomeValuesFrom(:").append(attributes.get(i)[0]).append(" :").append(attributes.get(i)[1]).append(')');
+		}
+		return sb.append("))))").toString();
+	}
+
+	private static String numberAxiom(String concept) {
+		return "SubClassOf(:" + concept + " :" + CdConversion.SCTID_NUMBER + ")";
+	}
+
+	void writeSnapshot(File archive) throws IOException {
+		Content content = international(0);
+		info("Writing " + archive + " with " + content.numberCount + " number concepts and " + content.productCount + " products");
+		try (RF2ZipWriter zip = new RF2ZipWriter(archive, "SnomedCT_SyntheticRF2_PRODUCTION_" + releaseDate + "T120000Z/Snapshot/", CdConversion.SNAPSHOT, content.namespace, releaseDate)) {
+			writeContent(zip, content, content, releaseDate, true);
+		}
+	}
+
+	void writeExtension(File archive) throws IOException {
+		Content content = extension();
+		info("Writing " + archive + " with " + content.numberCount + " number concepts and " + content.productCount + " products");
+		try (RF2ZipWriter zip = new RF2ZipWriter(archive, "SnomedCT_SyntheticExtensionRF2_PRODUCTION_" + extensionDate + "T120000Z/Snapshot/", CdConversion.SNAPSHOT, content.namespace, extensionDate)) {
+			writeContent(zip, content, international(0), extensionDate, false);
+		}
+	}
+
+	/**
+	 * All the rows of a snapshot, file by file
+	 * @param topLevel whether the concepts the content hangs off, such as 260299005 |Number|, belong here
+	 */
+	private void writeContent(RF2ZipWriter zip, Content content, Content numbers, String effectiveTime, boolean topLevel) throws IOException {
+		zip.startFile("Terminology/sct2_Concept_", "", CONCEPT_HEADER);
+		if (topLevel) {
+			for (String fixed : new String[] { ROOT, CdConversion.SCTID_NUMBER, MEDICINAL_PRODUCT }) {
+				zip.row(fixed, effectiveTime, "1", content.module, PRIMITIVE);
+			}
+		}
+		for (int idx = 0; idx < content.conceptCount(); idx++) {
+			zip.row(content.concept(idx), effectiveTime, "1", content.module, PRIMITIVE);
+		}
+
+		zip.startFile("Terminology/sct2_Description_", "-en", DESCRIPTION_HEADER);
+		for (int idx = 0; idx < content.conceptCount(); idx++) {
+			writeDescriptions(zip, content, idx, effectiveTime, 0);
+		}
+
+		zip.startFile("Terminology/sct2_Relationship_", "", RELATIONSHIP_HEADER);
+		for (int idx = 0; idx < content.conceptCount(); idx++) {
+			writeRelationships(zip, content, idx, effectiveTime, numbers);
+		}
+
+		zip.startFile("Terminology/" + CdConversion.OWL_PREFIX, "", OWL_HEADER);
+		for (int idx = 0; idx < content.conceptCount(); idx++) {
+			writeAxiom(zip, content, idx, effectiveTime, "1", 0, numbers);
+		}
+	}
+
+	/**
+	 * A number concept's value is given as its synonym, which is replaced when the version changes
+	 */
+	private void writeDescriptions(RF2ZipWriter zip, Content content, int idx, String effectiveTime, int version) throws IOException {
+		String concept = content.concept(idx);
+		if (content.isNumber(idx)) {
+			String value = numericValue(idx, version);
+			if (version == 0) {
+				zip.row(content.description(idx, 0), effectiveTime, "1", content.module, concept, "en", FSN, value + " (qualifier value)", CASE_INSENSITIVE);
+			}
+			zip.row(content.description(idx, 1 + version), effectiveTime, "1", content.module, concept, "en", SYNONYM, value, CASE_INSENSITIVE);
+		} else {
+			zip.row(content.description(idx, 0), effectiveTime, "1", content.module, concept, "en", FSN, "Synthetic product " + concept + " (medicinal product)", CASE_INSENSITIVE);
+			zip.row(content.description(idx, 1), effectiveTime, "1", content.module, concept, "en", SYNONYM, "Synthetic product " + concept, CASE_INSENSITIVE);
+		}
+	}
+
+	private void writeRelationships(RF2ZipWriter zip, Content content, int idx, String effectiveTime, Content numbers) throws IOException {
+		String concept = content.concept(idx);
+		if (content.isNumber(idx)) {
+			zip.row(content.relationship(idx, 0), effectiveTime, "1", content.module, concept, CdConversion.SCTID_NUMBER, "0", CdConversion.SCTID_IS_A, INFERRED, EXISTENTIAL);
+			return;
+		}
+		zip.row(content.relationship(idx, 0), effectiveTime, "1", content.module, concept, MEDICINAL_PRODUCT, "0", CdConversion.SCTID_IS_A, INFERRED, EXISTENTIAL);
+		List<String[]> attributes = productAttributes(content, idx, 0, numbers);
+		for (int n = 0; n < attributes.size(); n++) {
+			zip.row(content.relationship(idx, n + 1), effectiveTime, "1", content.module, concept, attributes.get(n)[1], "1", attributes.get(n)[0], INFERRED, EXISTENTIAL);
+		}
+	}
+
+	private void writeAxiom(RF2ZipWriter zip, Content content, int idx, String effectiveTime, String active, int version, Content numbers) throws IOException {
+		String concept = content.concept(idx);
+		String axiom = content.isNumber(idx) ? numberAxiom(concept) : productAxiom(concept, productAttributes(content, idx, version, numbers));
+		zip.row(content.memberId(idx), effectiveTime, active, content.module, OWL_REFSET, concept, axiom);
+	}
+
+	/**
+	 * An in-flight delta to the snapshot, with blank effective times.  Every 1/deltaRate'th number concept
+	 * is given a new value, and the same proportion of products have their axiom alternately redefined or
+	 * inactivated.  New number concepts and products are added too, which the redefined axioms may use.
+	 * Only the new number concepts' relationships are included, as the conversion needs them to be
+	 * known as numbers; everything else would still be waiting to be classified.
+	 */
+	void writeDelta(File archive) throws IOException {
+		int step = Math.max(1, (int) Math.round(1 / deltaRate));
+		Content snapshot = international(0);
+		Content content = international(Math.max(1, snapshot.numberCount / step));
+		int newProducts = Math.max(1, content.productCount / step);
+		int firstNew = content.conceptCount();
+		int newCount = content.newNumbers + newProducts;
+		info("Writing " + archive + " changing every " + step + "th concept, and adding " + content.newNumbers + " number concepts and " + newProducts + " products");
+		String noDate = "";
+		try (RF2ZipWriter zip = new RF2ZipWriter(archive, "SnomedCT_SyntheticRF2_DELTA_" + releaseDate + "/Delta/", CdConversion.DELTA, content.namespace, releaseDate)) {
+			zip.startFile("Terminology/sct2_Concept_", "", CONCEPT_HEADER);
+			for (int idx = firstNew; idx < firstNew + newCount; idx++) {
+				zip.row(content.concept(idx), noDate, "1", content.module, PRIMITIVE);
+			}
+
+			zip.startFile("Terminology/sct2_Description_", "-en", DESCRIPTION_HEADER);
+			for (int idx = 0; idx < content.numberCount; idx += step) {
+				zip.row(content.description(idx, 1), noDate, "0", content.module, content.concept(idx), "en", SYNONYM, numericValue(idx, 0), CASE_INSENSITIVE);
+				writeDescriptions(zip, content, idx, noDate, 1);
+			}
+			for (int idx = firstNew; idx < firstNew + newCount; idx++) {
+				writeDescriptions(zip, content, idx, noDate, 0);
+			}
+
+			zip.startFile("Terminology/sct2_Relationship_", "", RELATIONSHIP_HEADER);
+			for (int idx = firstNew; idx < firstNew + content.newNumbers; idx++) {
+				writeRelationships(zip, content, idx, noDate, content);
+			}
+
+			zip.startFile("Terminology/" + CdConversion.OWL_PREFIX, "", OWL_HEADER);
+			int changed = 0;
+			for (int idx = content.numberCount; idx < content.conceptCount(); idx += step) {
+				writeAxiom(zip, content, idx, noDate, changed++ % 2 == 0 ? "1" : "0", 1, content);
+			}
+			for (int idx = firstNew; idx < firstNew + newCount; idx++) {
+				writeAxiom(zip, content, idx, noDate, "1", 0, content);
+			}
+		}
+	}
+
+	/**
+	 * Calculates the Verhoeff check digit, as SNOMED CT identifiers use
+	 */
+	static String sctid(long itemId, String suffix) {
+		String partial = itemId + suffix;
+		int check = 0;
+		for (int i = partial.length() - 1, pos = 1; i >= 0; i--, pos++) {
+			check = VERHOEFF_D[check][VERHOEFF_P[pos % 8][partial.charAt(i) - '0']];
+		}
+		return partial + VERHOEFF_INV[check];
+	}
+
+	private static final int[][] VERHOEFF_D = {
+		{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, {1, 2, 3, 4, 0, 6, 7, 8, 9, 5}, {2, 3, 4, 0, 1, 7, 8, 9, 5, 6},
+		{3, 4, 0, 1, 2, 8, 9, 5, 6, 7}, {4, 0, 1, 2, 3, 9, 5, 6, 7, 8}, {5, 9, 8, 7, 6, 0, 4, 3, 2, 1},
+		{6, 5, 9, 8, 7, 1, 0, 4, 3, 2}, {7, 6, 5, 9, 8, 2, 1, 0, 4, 3}, {8, 7, 6, 5, 9, 3, 2, 1, 0, 4},
+		{9, 8, 7, 6, 5, 4, 3, 2, 1, 0}
+	};
+	private static final int[][] VERHOEFF_P = {
+		{0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, {1, 5, 7, 6, 2, 8, 3, 0, 9, 4}, {5, 8, 0, 3, 7, 9, 6, 1, 4, 2},
+		{8, 9, 1, 6, 0, 4, 3, 5, 2, 7}, {9, 4, 5, 3, 1, 2, 7, 6, 0, 8}, {4, 2, 8, 6, 5, 7, 3, 9, 0, 1},
+		{2, 7, 9, 3, 8, 0, 6, 4, 1, 5}, {7, 0, 4, 6, 9, 1, 3, 2, 5, 8}
+	};
+	private static final int[] VERHOEFF_INV = {0, 4, 3, 2, 1, 5, 6, 7, 8, 9};
+
+	/**
+	 * Writes RF2 files into a zip one after another, named as a release would name them
+	 */
+	private static class RF2ZipWriter implements Closeable {
+		final ZipOutputStream zip;
+		final Writer out;
+		final String root, releaseType, namespace, date;
+		long rows = 0;
+
+		RF2ZipWriter (File archive, String root, String releaseType, String namespace, String date) throws IOException {
+			zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive), 64 * 1024));
+			out = new BufferedWriter(new OutputStreamWriter(zip, StandardCharsets.UTF_8), 64 * 1024);
+			this.root = root;
+			this.releaseType = releaseType;
+			this.namespace = namespace;
+			this.date = date;
+		}
+
+		/**
+		 * Starts the next file, named as in the release eg sct2_Description_Snapshot-en_INT_20210131.txt
+		 */
+		void startFile(String prefix, String language, String header) throws IOException {
+			out.flush();
+			zip.putNextEntry(new ZipEntry(root + prefix + releaseType + language + "_" + namespace + "_" + date + ".txt"));
+			row(header);
+		}
+
+		void row(String... fields) throws IOException {
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0) {
+					out.write(CdConversion.FIELD_DELIMITER);
+				}
+				out.write(fields[i]);
+			}
+			out.write(CdConversion.LINE_DELIMITER);
+			rows++;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+			info("Written " + rows + " rows");
+		}
+	}
+
+	private static void info(String msg) {
+		CdConversion.info(msg);
+	}
+
+	private static void exit(String msg) {
+		CdConversion.warn(msg);
+		System.exit(-1);
+	}
+}
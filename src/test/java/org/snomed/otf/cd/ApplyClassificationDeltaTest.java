@@ -0,0 +1,170 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.*;
+
+public class ApplyClassificationDeltaTest extends TestCase
+{
+	private static final String HEADER = "id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\trelationshipGroup\ttypeId\tcharacteristicTypeId\tmodifierId";
+
+	/**
+	 * Rows the classifier has returned an id for, whether an SCTID or not, should be replaced by
+	 * the classifier's rows, which follow the rest of the delta without their header, all CRLF terminated
+	 */
+	public void testMergePair() throws IOException
+	{
+		File dir = Files.createTempDirectory("cd-classification-").toFile();
+		try {
+			File delta = new File(dir, "sct2_Relationship_Delta_INT_20210131.txt");
+			write(delta, HEADER,
+					"100001\t20210131\t1\t900000000000207008\t22298006\t74400008\t0\t363698007\t900000000000011006\t900000000000451002",
+					"100002\t20210131\t1\t900000000000207008\t22298006\t39057004\t0\t116676008\t900000000000011006\t900000000000451002",
+					"a5f2e4b0-1c2d-4e3f-9a8b-7c6d5e4f3a2b\t20210131\t1\t900000000000207008\t22298006\t39057004\t0\t116680003\t900000000000011006\t900000000000451002",
+					"c0ffee00-1c2d-4e3f-9a8b-7c6d5e4f3a2b\t20210131\t1\t900000000000207008\t22298006\t39057004\t0\t116680003\t900000000000011006\t900000000000451002",
+					"100003\t20210131\t1\t900000000000207008\t22298006\t74400008\t0\t363698007\t900000000000011006\t900000000000451002");
+			File classification = new File(dir, "sct2_Relationship_Delta_Classification_20210131.txt");
+			write(classification, HEADER,
+					"100001\t\t0\t900000000000207008\t22298006\t74400008\t0\t363698007\t900000000000011006\t900000000000451002",
+					"200001\t\t1\t900000000000207008\t22298006\t80891009\t0\t363698007\t900000000000011006\t900000000000451002",
+					"a5f2e4b0-1c2d-4e3f-9a8b-7c6d5e4f3a2b\t\t0\t900000000000207008\t22298006\t39057004\t0\t116680003\t900000000000011006\t900000000000451002",
+					//Not a row with more than an id, so not taken as replacing the row in the delta
+					"100003");
+
+			ApplyClassificationDelta.main(new String[] { classification.getPath(), delta.getPath() });
+
+			String expected = String.join("\r\n", HEADER,
+					"100002\t20210131\t1\t900000000000207008\t22298006\t39057004\t0\t116676008\t900000000000011006\t900000000000451002",
+					"c0ffee00-1c2d-4e3f-9a8b-7c6d5e4f3a2b\t20210131\t1\t900000000000207008\t22298006\t39057004\t0\t116680003\t900000000000011006\t900000000000451002",
+					"100003\t20210131\t1\t900000000000207008\t22298006\t74400008\t0\t363698007\t900000000000011006\t900000000000451002",
+					"100001\t\t0\t900000000000207008\t22298006\t74400008\t0\t363698007\t900000000000011006\t900000000000451002",
+					"200001\t\t1\t900000000000207008\t22298006\t80891009\t0\t363698007\t900000000000011006\t900000000000451002",
+					"a5f2e4b0-1c2d-4e3f-9a8b-7c6d5e4f3a2b\t\t0\t900000000000207008\t22298006\t39057004\t0\t116680003\t900000000000011006\t900000000000451002",
+					"100003") + "\r\n";
+			assertEquals(expected, new String(Files.readAllBytes(delta.toPath()), StandardCharsets.UTF_8));
+			//Only the merged file is left, moved into place of the delta
+			assertEquals(Arrays.asList(classification.getName(), delta.getName()), Arrays.asList(sortedList(dir)));
+		} finally {
+			SyntheticReleases.delete(dir);
+		}
+	}
+
+	/**
+	 * Each delta in the classified archive should be merged into the converted delta with the
+	 * same name up to _Delta, so that Relationship and RelationshipConcreteValues are kept apart.
+	 * Deltas with no converted counterpart are copied in next to the Relationship delta, and
+	 * anything without _Delta in its name is left out.
+	 */
+	public void testMergeArchive() throws IOException
+	{
+		File dir = Files.createTempDirectory("cd-classification-").toFile();
+		try {
+			File archive = new File(dir, "classified.zip");
+			String classified = "SnomedCT_Classification/RF2Release/Terminology/";
+			try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive))) {
+				zos.putNextEntry(new ZipEntry(classified));
+				putEntry(zos, classified + "sct2_Relationship_Delta_Classification_20210131.txt", HEADER, "200001\trelationship");
+				putEntry(zos, classified + "sct2_RelationshipConcreteValues_Delta_Classification_20210131.txt", HEADER, "200002\tconcrete");
+				//Neither has _Delta in its name
+				putEntry(zos, classified + "sct2_sRefset_OWLExpressionDelta_Classification_20210131.txt", HEADER, "200003\towl");
+				putEntry(zos, classified + "sct2_Relationship_Snapshot_Classification_20210131.txt", HEADER, "200004\tsnapshot");
+				putEntry(zos, "readme.txt", "Not a delta");
+			}
+
+			//Both relationship files converted
+			File terminology = new File(dir, "both/SnomedCT_Test/Delta/Terminology");
+			File relationship = new File(terminology, "sct2_Relationship_Delta_INT_20210131.txt");
+			File concrete = new File(terminology, "sct2_RelationshipConcreteValues_Delta_INT_20210131.txt");
+			File snapshot = new File(dir, "both/SnomedCT_Test/Snapshot/Terminology/sct2_Relationship_Snapshot_INT_20210131.txt");
+			write(relationship, HEADER, "100001\texisting");
+			write(concrete, HEADER, "100002\texisting");
+			write(snapshot, HEADER);
+			ApplyClassificationDelta.main(new String[] { archive.getPath(), new File(dir, "both").getPath() });
+			assertEquals(Arrays.asList(HEADER, "100001\texisting", "200001\trelationship"), readLines(relationship));
+			assertEquals(Arrays.asList(HEADER, "100002\texisting", "200002\tconcrete"), readLines(concrete));
+			assertEquals(Collections.singletonList(HEADER), readLines(snapshot));
+			assertEquals(2, terminology.list().length);
+
+			//No concrete values converted, so they're copied in next to the relationships
+			terminology = new File(dir, "relationship/SnomedCT_Test/Delta/Terminology");
+			relationship = new File(terminology, "sct2_Relationship_Delta_INT_20210131.txt");
+			write(relationship, HEADER, "100001\texisting");
+			ApplyClassificationDelta.main(new String[] { archive.getPath(), new File(dir, "relationship").getPath() });
+			assertEquals(Arrays.asList(HEADER, "100001\texisting", "200001\trelationship"), readLines(relationship));
+			assertEquals(Arrays.asList(HEADER, "200002\tconcrete"), readLines(new File(terminology, "sct2_RelationshipConcreteValues_Delta_INT_20210131.txt")));
+			assertEquals(2, terminology.list().length);
+
+			//Nothing to go alongside, so the classifier's names are used in the standard folder
+			File empty = new File(dir, "empty");
+			empty.mkdirs();
+			ApplyClassificationDelta.main(new String[] { archive.getPath(), empty.getPath() });
+			terminology = new File(empty, "SnomedCT_Export/RF2Release/Terminology");
+			assertEquals(Arrays.asList("sct2_RelationshipConcreteValues_Delta_INT_20210131.txt", "sct2_Relationship_Delta_INT_20210131.txt"),
+					Arrays.asList(sortedList(terminology)));
+			assertEquals(1, empty.list().length);
+		} finally {
+			SyntheticReleases.delete(dir);
+		}
+	}
+
+	/**
+	 * Classified deltas of the same component type in different folders go to the same file, and
+	 * should be merged into it one after the other rather than the last to finish winning
+	 */
+	public void testMergeSameTarget() throws IOException
+	{
+		File dir = Files.createTempDirectory("cd-classification-").toFile();
+		try {
+			File archive = new File(dir, "classified.zip");
+			try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive))) {
+				String[] folders = new String[] { "first", "second", "third" };
+				for (int i = 0; i < folders.length; i++) {
+					putEntry(zos, folders[i] + "/sct2_Relationship_Delta_Classification_20210131.txt", HEADER, "20000" + i + "\t" + folders[i]);
+					putEntry(zos, folders[i] + "/sct2_RelationshipConcreteValues_Delta_Classification_20210131.txt", HEADER, "30000" + i + "\t" + folders[i]);
+				}
+			}
+			File terminology = new File(dir, "output/SnomedCT_Test/Delta/Terminology");
+			File relationship = new File(terminology, "sct2_Relationship_Delta_INT_20210131.txt");
+			write(relationship, HEADER, "100001\texisting");
+			ApplyClassificationDelta.main(new String[] { archive.getPath(), new File(dir, "output").getPath() });
+			assertEquals(Arrays.asList(HEADER, "100001\texisting", "200000\tfirst", "200001\tsecond", "200002\tthird"), readLines(relationship));
+			//The first is copied in as the new file, the others merged into it
+			assertEquals(Arrays.asList(HEADER, "300000\tfirst", "300001\tsecond", "300002\tthird"),
+					readLines(new File(terminology, "sct2_RelationshipConcreteValues_Delta_INT_20210131.txt")));
+			assertEquals(2, terminology.list().length);
+		} finally {
+			SyntheticReleases.delete(dir);
+		}
+	}
+
+	private static void putEntry(ZipOutputStream zos, String name, String... lines) throws IOException
+	{
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write((String.join("\r\n", lines) + "\r\n").getBytes(StandardCharsets.UTF_8));
+		zos.closeEntry();
+	}
+
+	private static List<String> readLines(File file) throws IOException
+	{
+		return SyntheticReleases.readLines(new FileInputStream(file));
+	}
+
+	static void write(File file, String... lines) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		//Written with LF endings, which should be replaced with CRLF where rows are written out
+		Files.write(file.toPath(), (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String[] sortedList(File dir)
+	{
+		String[] names = dir.list();
+		Arrays.sort(names);
+		return names;
+	}
+}
@@ -0,0 +1,72 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.*;
+
+public class ArchiveLinesTest extends TestCase
+{
+	static final String rows = "id\teffectiveTime\tactive\tmoduleId\tsourceId\tdestinationId\r\n" +
+			"100022\t20200731\t1\t900000000000207008\t38112003\t260299005\r\n" +
+			"100023\t\t0\t900000000000207008\t3445001\t\t\r\n" +
+			"100024\t20200731\t1\t900000000000207008\t732775002\t260299005";
+
+	public void testFieldAccess() throws IOException
+	{
+		ArchiveLines lines = new ArchiveLines(new ByteArrayInputStream(rows.getBytes(StandardCharsets.UTF_8)));
+		assertTrue(lines.next());
+		assertTrue(lines.fieldEquals(0, "id"));
+		assertTrue(lines.next());
+		assertTrue(lines.fieldEquals(2, "1"));
+		assertFalse(lines.fieldEquals(4, "3811200"));
+		assertEquals(38112003L, lines.getSctid(4));
+		assertEquals("260299005", lines.getField(5));
+		//Trailing empty fields are dropped, as String.split would
+		assertTrue(lines.next());
+		assertEquals(5, lines.getFields().length);
+		assertEquals(SctidMap.NOT_AN_SCTID, lines.getSctid(1));
+		assertTrue(lines.next());
+		assertEquals(732775002L, lines.getSctid(4));
+		assertFalse(lines.next());
+	}
+
+	/**
+	 * Fields a short row doesn't have are missing, not left over from the row before
+	 */
+	public void testShortRow() throws IOException
+	{
+		String shortRows = "100022\t20200731\t1\t900000000000207008\t38112003\t260299005\r\n" +
+				"100023\t20200731";
+		ArchiveLines lines = new ArchiveLines(new ByteArrayInputStream(shortRows.getBytes(StandardCharsets.UTF_8)));
+		assertTrue(lines.next());
+		assertTrue(lines.next());
+		assertEquals(2, lines.getFieldCount());
+		assertTrue(lines.hasField(1));
+		assertFalse(lines.hasField(5));
+		assertEquals(SctidMap.NOT_AN_SCTID, lines.getSctid(5));
+		assertNull(lines.getField(5));
+		assertFalse(lines.fieldEquals(5, "260299005"));
+		assertEquals(lines.getFieldStart(4), lines.getFieldEnd(4));
+		assertEquals(lines.getLineEnd(), lines.getFieldStart(4));
+		assertEquals("20200731", lines.getField(1));
+		assertFalse(lines.next());
+	}
+
+	public void testReadFailureReported()
+	{
+		InputStream failing = new InputStream() {
+			public int read() throws IOException {
+				throw new IOException("Truncated archive");
+			}
+		};
+		try {
+			for (String[] fields : new ArchiveLines(failing)) {
+				fail("Unexpected row " + fields[0]);
+			}
+			fail("Read failure was not reported");
+		} catch (UncheckedIOException e) {
+			assertEquals("Truncated archive", e.getCause().getMessage());
+		}
+	}
+}
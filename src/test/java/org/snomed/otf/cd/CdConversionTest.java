@@ -1,6 +1,9 @@
 package org.snomed.otf.cd;
 
+import java.io.*;
 import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import junit.framework.*;
 
@@ -52,4 +55,155 @@ public class CdConversionTest extends TestCase
 		String convertedOwl = conversion.modifyOWLIfRequired(testConcept, testInput);
 		assertEquals(expectedOuput, convertedOwl);
 	}
+	
+	/**
+	 * Axioms with nothing to convert should come back untouched
+	 */
+	public void testOWLUnchanged()
+	{
+		CdConversion conversion = createConversion();
+		String noMappedAttributes = "SubClassOf(:322236009 ObjectSomeValuesFrom(:411116001 :421026006))";
+		assertSame(noMappedAttributes, conversion.modifyOWLIfRequired(testConcept, noMappedAttributes));
+		String tooManyDigits = "SubClassOf(:322236009 ObjectSomeValuesFrom(:766952006 :1234567890123456789))";
+		assertSame(tooManyDigits, conversion.modifyOWLIfRequired(testConcept, tooManyDigits));
+		//If any number is unknown, the whole axiom is left alone
+		String unknownNumber = "SubClassOf(:322236009 ObjectIntersectionOf(ObjectSomeValuesFrom(:766952006 :38112003) ObjectSomeValuesFrom(:732944001 :3445002)))";
+		assertSame(unknownNumber, conversion.modifyOWLIfRequired(testConcept, unknownNumber));
+	}
+	
+	/**
+	 * A value that unbalances the axiom is caught by the counts kept during the rewrite.  Only
+	 * what the rewrite spliced in is checked, so an axiom that was unbalanced to begin with isn't.
+	 */
+	public void testValidation()
+	{
+		CdConversion conversion = createConversion();
+		String convertedOwl = conversion.modifyOWLIfRequired(testConcept, testInput);
+		assertTrue(conversion.validateBeforeAndAfter(testConcept, testInput, convertedOwl));
+		
+		Map<String, String> attributeTypeMap = Collections.singletonMap("766952006", "3264479001");
+		Map<String, String> concreteTypeMap = Collections.singletonMap("3264479001", "integer");
+		conversion.setConfig(attributeTypeMap, concreteTypeMap, Collections.singletonMap("38112003", "1)"));
+		conversion.setCollectViolations(true);
+		String owl = "SubClassOf(:322236009 ObjectSomeValuesFrom(:766952006 :38112003))";
+		convertedOwl = conversion.modifyOWLIfRequired(testConcept, owl);
+		assertFalse(conversion.validateBeforeAndAfter(testConcept, owl, convertedOwl));
+		assertEquals(1, conversion.getViolations().size());
+		assertTrue(conversion.getViolations().get(0).contains("bracket pair mismatch"));
+		
+		conversion.setConfig(attributeTypeMap, concreteTypeMap, Collections.singletonMap("38112003", "1"));
+		String unbalanced = "SubClassOf(:322236009 ObjectSomeValuesFrom(:766952006 :38112003)";
+		convertedOwl = conversion.modifyOWLIfRequired(testConcept, unbalanced);
+		assertFalse(unbalanced.equals(convertedOwl));
+		assertTrue(conversion.validateBeforeAndAfter(testConcept, unbalanced, convertedOwl));
+		assertEquals(1, conversion.getViolations().size());
+	}
+	
+	public void testAttributeValues()
+	{
+		CdConversion conversion = createConversion();
+		long[] values = conversion.findAttributeValues(testInput);
+		Arrays.sort(values);
+		//Whether or not they're known to be numbers, but only for the mapped attributes
+		assertTrue(Arrays.equals(new long[] { 38112003L, 732775002L }, values));
+		assertEquals(0, conversion.findAttributeValues("SubClassOf(:322236009 ObjectSomeValuesFrom(:411116001 :421026006))").length);
+		//Nor a value that isn't an SCTID
+		assertEquals(0, conversion.findAttributeValues("SubClassOf(:322236009 ObjectSomeValuesFrom(:766952006 :0381120))").length);
+	}
+	
+	public void testAttributeFilter()
+	{
+		AttributeFilter filter = new AttributeFilter(Arrays.asList("766952006", "732944001", "7329440"));
+		assertTrue(filter.isCandidate(testInput));
+		assertTrue(filter.isCandidate("ObjectSomeValuesFrom(:7329440 :38112003)"));
+		assertFalse(filter.isCandidate("ObjectSomeValuesFrom(:411116001 :421026006)"));
+		//Only the attribute position counts, not the same SCTID as a value or a longer SCTID
+		assertFalse(filter.isCandidate("ObjectSomeValuesFrom(:411116001 :766952006)"));
+		assertFalse(filter.isCandidate("ObjectSomeValuesFrom(:7669520061 :38112003)"));
+	}
+	
+	/**
+	 * Extensions converted together against one read of their dependency should each come out
+	 * just as they would have been converted on their own, deltas included
+	 */
+	public void testMultipleExtensions() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File delta = releases.delta();
+			File first = releases.extension("first.zip");
+			releases.generator.setSize(2000, 0.5);
+			File second = releases.extension("second.zip");
+			File firstAlone = releases.convert("first-alone.zip", "-s", snapshot.getPath(), "-e", first.getPath());
+			File secondAlone = releases.convert("second-alone.zip", "-s", snapshot.getPath(), "-e", second.getPath(), "-d", delta.getPath());
+
+			//Written to the output folder, which is put somewhere we can clean up
+			String outputDir = CdConversion.OUTPUT_DIR;
+			File together = releases.file("together");
+			try {
+				CdConversion.OUTPUT_DIR = together.getPath();
+				CdConversion.main(new String[] { "-s", snapshot.getPath(), "-e", first.getPath(), "-e", second.getPath(), "-d", delta.getPath() });
+			} finally {
+				CdConversion.OUTPUT_DIR = outputDir;
+			}
+			String[] folders = together.list();
+			Arrays.sort(folders);
+			assertEquals("[first, second]", Arrays.toString(folders));
+			assertEquals(withoutOutputDir(SyntheticReleases.readEntries(firstAlone)), SyntheticReleases.readFiles(new File(together, "first")));
+			assertEquals(withoutOutputDir(SyntheticReleases.readEntries(secondAlone)), SyntheticReleases.readFiles(new File(together, "second")));
+		}
+	}
+
+	/**
+	 * Converting the OWL snapshot in ranges on several threads should give exactly the same archive
+	 */
+	public void testParallelConversionMatches() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(4000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File extension = releases.extension();
+			File sequential = releases.convert("sequential.zip", "-s", snapshot.getPath(), "-e", extension.getPath());
+			File parallel = releases.convert("parallel.zip", "-s", snapshot.getPath(), "-e", extension.getPath(), "-t", "4");
+			try (ZipFile expected = new ZipFile(sequential); ZipFile actual = new ZipFile(parallel)) {
+				assertEquals(expected.size(), actual.size());
+				for (ZipEntry ze : Collections.list(expected.entries())) {
+					ZipEntry other = actual.getEntry(ze.getName());
+					assertNotNull(ze.getName(), other);
+					assertTrue(ze.getName(), Arrays.equals(SyntheticReleases.readAll(expected.getInputStream(ze)), SyntheticReleases.readAll(actual.getInputStream(other))));
+				}
+			}
+		}
+	}
+
+	private static Map<String, List<String>> withoutOutputDir(Map<String, List<String>> entries)
+	{
+		Map<String, List<String>> files = new TreeMap<>();
+		for (Map.Entry<String, List<String>> entry : entries.entrySet()) {
+			assertTrue(entry.getKey().startsWith(CdConversion.OUTPUT_DIR + "/"));
+			files.put(entry.getKey().substring(CdConversion.OUTPUT_DIR.length() + 1), entry.getValue());
+		}
+		return files;
+	}
+	
+	private CdConversion createConversion()
+	{
+		Map<String, String> attributeTypeMap = new HashMap<>();
+		attributeTypeMap.put("766952006", "3264479001");  //Ingred Count
+		attributeTypeMap.put("732944001", "3264475007");  //Pres Num Val
+		attributeTypeMap.put("732946004", "3264476008");  //Pres Demom Val
+		
+		Map<String, String> concreteTypeMap = new HashMap<>();
+		concreteTypeMap.put("3264479001", "integer");
+		concreteTypeMap.put("3264475007", "decimal");
+		concreteTypeMap.put("3264476008", "decimal");
+		
+		Map<String, String> conceptNumberMap = new HashMap<>();
+		conceptNumberMap.put("732775002", "500");  
+		conceptNumberMap.put("3445001", "10");
+		conceptNumberMap.put("38112003", "1");
+		
+		CdConversion conversion = new CdConversion();
+		conversion.setConfig(attributeTypeMap, concreteTypeMap, conceptNumberMap);
+		return conversion;
+	}
 }
@@ -0,0 +1,99 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.*;
+
+public class ConversionMetricsTest extends TestCase
+{
+	private static final String CSV_HEADER = "kind,phase,archive,path,millis,bytesInflated,rowsRead,rowsRewritten,rowsWritten,preFilterMisses,heapUsedBytes";
+	private static final List<String> PHASES = Arrays.asList("index", "scan", "numbers", "convert", "remainder", "finish");
+	private static final List<String> COUNTS = Arrays.asList("bytesInflated", "rowsRead", "rowsRewritten", "rowsWritten", "preFilterMisses");
+
+	/**
+	 * The CSV report should have a row for each phase and entry, with totals that add up, and the
+	 * JSON report the same counts for the same conversion
+	 */
+	public void testReports() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File delta = releases.delta();
+			File csv = releases.file("metrics.csv");
+			File json = releases.file("metrics.json");
+			releases.convert("csv.zip", "-s", snapshot.getPath(), "-d", delta.getPath(), "-mr", csv.getPath());
+			releases.convert("json.zip", "-s", snapshot.getPath(), "-d", delta.getPath(), "-mr", json.getPath());
+
+			List<String> lines = Files.readAllLines(csv.toPath());
+			assertEquals(CSV_HEADER, lines.get(0));
+			List<String> phases = new ArrayList<>();
+			long[] entryTotals = new long[COUNTS.size()];
+			int entries = 0;
+			String[] total = null;
+			for (String line : lines.subList(1, lines.size())) {
+				String[] fields = line.split(",", -1);
+				assertEquals(line, 11, fields.length);
+				if (fields[0].equals("phase")) {
+					phases.add(fields[1]);
+					assertTrue(line, Long.parseLong(fields[10]) > 0);
+				} else if (fields[0].equals("entry")) {
+					assertTrue(line, PHASES.contains(fields[1]));
+					for (int i = 0; i < entryTotals.length; i++) {
+						entryTotals[i] += Long.parseLong(fields[5 + i]);
+					}
+					entries++;
+				} else {
+					assertEquals("total", fields[0]);
+					total = fields;
+				}
+			}
+			assertEquals(PHASES, phases);
+			assertTrue(entries > 0);
+			assertNotNull(total);
+			for (int i = 0; i < entryTotals.length; i++) {
+				assertEquals(COUNTS.get(i), entryTotals[i], Long.parseLong(total[5 + i]));
+			}
+			assertTrue(entryTotals[COUNTS.indexOf("rowsRewritten")] > 0);
+			assertTrue(entryTotals[COUNTS.indexOf("rowsWritten")] >= entryTotals[COUNTS.indexOf("rowsRewritten")]);
+			assertTrue(Long.parseLong(total[10]) > 0);
+
+			String report = new String(Files.readAllBytes(json.toPath()), "UTF-8");
+			List<String> keys = new ArrayList<>();
+			Matcher topLevel = Pattern.compile("(?m)^  \"(\\w+)\":").matcher(report);
+			while (topLevel.find()) {
+				keys.add(topLevel.group(1));
+			}
+			assertEquals(Arrays.asList("totalMillis", "peakHeapBytes", "conceptsRemodelled", "totals", "phases", "entries"), keys);
+			assertTrue(number(report, "conceptsRemodelled") > 0);
+			assertTrue(number(report, "peakHeapBytes") > 0);
+			//The same conversion, so the same counts
+			String totals = report.substring(report.indexOf("\"totals\""), report.indexOf("\"phases\""));
+			for (int i = 0; i < COUNTS.size(); i++) {
+				assertEquals(COUNTS.get(i), entryTotals[i], number(totals, COUNTS.get(i)));
+			}
+			List<String> jsonPhases = new ArrayList<>();
+			Matcher phase = Pattern.compile("\\{ \"name\": \"(\\w+)\"").matcher(report);
+			while (phase.find()) {
+				jsonPhases.add(phase.group(1));
+			}
+			assertEquals(PHASES, jsonPhases);
+			Matcher entry = Pattern.compile("\\{ \"phase\": ").matcher(report);
+			int jsonEntries = 0;
+			while (entry.find()) {
+				jsonEntries++;
+			}
+			assertEquals(entries, jsonEntries);
+		}
+	}
+
+	private static long number(String json, String key)
+	{
+		Matcher matcher = Pattern.compile("\"" + key + "\": (\\d+)").matcher(json);
+		assertTrue(key, matcher.find());
+		return Long.parseLong(matcher.group(1));
+	}
+}
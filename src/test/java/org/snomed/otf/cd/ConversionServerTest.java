@@ -0,0 +1,185 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.*;
+
+public class ConversionServerTest extends TestCase
+{
+	/**
+	 * A delta posted to the server should come back just as the command line would have converted it,
+	 * the second time as well as the first
+	 */
+	public void testPostedDeltaConverts() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File delta = releases.delta();
+			File expected = releases.convert("expected.zip", "-s", snapshot.getPath(), "-d", delta.getPath());
+			File served = releases.file("served.zip");
+			ConversionServer server = startServer(snapshot);
+			try {
+				for (int i = 0; i < 2; i++) {
+					ConversionClient.convert(convertUrl(server), delta, served);
+					assertEquals(SyntheticReleases.readSortedEntries(expected), SyntheticReleases.readSortedEntries(served));
+				}
+				try {
+					ConversionClient.convert(convertUrl(server), snapshot, served);
+					fail("A snapshot has no delta to convert");
+				} catch (IOException expectedFailure) {
+					assertTrue(expectedFailure.getMessage(), expectedFailure.getMessage().contains("400"));
+				}
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Axioms that fail validation should be reported back rather than quietly output unconverted,
+	 * and a conversion that fails part way should leave nothing running or spooled behind it
+	 */
+	public void testFailuresReturned() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File delta = releases.delta();
+			//Rows cut short, which the conversion can't cope with
+			File truncated = rewriteOWL(delta, releases.file("truncated.zip"), row -> row.substring(0, row.indexOf(CdConversion.FIELD_DELIMITER)));
+			//Concrete types that leave every rewritten axiom a closing bracket over
+			File brokenConfig = releases.file("broken-config.txt");
+			List<String> config = new ArrayList<>();
+			for (String line : Files.readAllLines(new File("config.txt").toPath())) {
+				String[] columns = line.split(CdConversion.FIELD_DELIMITER);
+				columns[2] += ")";
+				config.add(String.join(CdConversion.FIELD_DELIMITER, columns));
+			}
+			Files.write(brokenConfig.toPath(), config);
+			File served = releases.file("served.zip");
+
+			CdConversion brokenConversion = CdConversion.forDependency(snapshot, brokenConfig);
+			brokenConversion.setCollectViolations(true);
+			ConversionServer brokenServer = new ConversionServer(brokenConversion, 0);
+			brokenServer.start();
+			try {
+				ConversionClient.convert(convertUrl(brokenServer), delta, served);
+				fail("Unbalanced axioms should fail validation");
+			} catch (IOException expectedFailure) {
+				assertTrue(expectedFailure.getMessage(), expectedFailure.getMessage().contains("422"));
+				assertTrue(expectedFailure.getMessage(), expectedFailure.getMessage().contains("bracket pair mismatch"));
+			} finally {
+				brokenServer.stop();
+			}
+
+			ConversionServer server = startServer(snapshot);
+			try {
+				int writersRunning = countThreads("rf2-writer");
+				int spooled = countSpooledEntries();
+				try {
+					ConversionClient.convert(convertUrl(server), truncated, served);
+					fail("Truncated rows can't be converted");
+				} catch (IOException expectedFailure) {
+					assertTrue(expectedFailure.getMessage(), expectedFailure.getMessage().contains("500"));
+				}
+				assertEquals(writersRunning, countThreads("rf2-writer"));
+				assertEquals(spooled, countSpooledEntries());
+
+				//And the next delta is converted as usual
+				ConversionClient.convert(convertUrl(server), delta, served);
+				assertFalse(SyntheticReleases.readEntries(served).isEmpty());
+			} finally {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * A delta that can't be converted should end the conversion, not the process serving it
+	 */
+	public void testFailureThrown() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File delta = releases.delta();
+			File withoutOWL = releases.file("without-owl.zip");
+			try (ZipFile zip = new ZipFile(delta); ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(withoutOWL))) {
+				for (ZipEntry ze : Collections.list(zip.entries())) {
+					if (!ze.getName().contains(CdConversion.OWL_PREFIX)) {
+						zos.putNextEntry(new ZipEntry(ze.getName()));
+						if (!ze.isDirectory()) {
+							zos.write(SyntheticReleases.readAll(zip.getInputStream(ze)));
+						}
+						zos.closeEntry();
+					}
+				}
+			}
+			CdConversion conversion = CdConversion.forDependency(snapshot, new File("config.txt"));
+			try (DependencyBaseline baseline = conversion.buildBaseline()) {
+				try {
+					conversion.convertDelta(baseline, withoutOWL, releases.file("served.zip"));
+					fail("A delta without an OWL file can't be converted");
+				} catch (IllegalStateException expectedFailure) {
+					assertTrue(expectedFailure.getMessage(), expectedFailure.getMessage().contains("Stated OWL"));
+				}
+				assertTrue(conversion.convertDelta(baseline, delta, releases.file("served.zip")).isEmpty());
+			}
+		}
+	}
+
+	private static ConversionServer startServer(File snapshot) throws IOException
+	{
+		ConversionServer server = new ConversionServer(CdConversion.forDependency(snapshot, new File("config.txt")), 0);
+		server.start();
+		return server;
+	}
+
+	private static URL convertUrl(ConversionServer server) throws IOException
+	{
+		return new URL("http://localhost:" + server.getPort() + "/convert");
+	}
+
+	/**
+	 * Copies the archive, passing each row of its OWL files after the header through the given edit
+	 */
+	private static File rewriteOWL(File archive, File rewritten, Function<String, String> edit) throws IOException
+	{
+		try (ZipFile zip = new ZipFile(archive); ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(rewritten))) {
+			for (ZipEntry ze : Collections.list(zip.entries())) {
+				zos.putNextEntry(new ZipEntry(ze.getName()));
+				if (!ze.isDirectory()) {
+					List<String> lines = SyntheticReleases.readLines(zip.getInputStream(ze));
+					boolean isOWL = ze.getName().contains(CdConversion.OWL_PREFIX);
+					for (int i = 0; i < lines.size(); i++) {
+						String line = isOWL && i > 0 ? edit.apply(lines.get(i)) : lines.get(i);
+						zos.write((line + CdConversion.LINE_DELIMITER).getBytes("UTF-8"));
+					}
+				}
+				zos.closeEntry();
+			}
+		}
+		return rewritten;
+	}
+
+	private static int countThreads(String name)
+	{
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name) && thread.isAlive()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int countSpooledEntries()
+	{
+		return new File(System.getProperty("java.io.tmpdir")).list((dir, name) -> name.startsWith("cd-entry-")).length;
+	}
+}
@@ -0,0 +1,96 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import junit.framework.*;
+
+public class InferredRelationshipChangesTest extends TestCase
+{
+	static final String snapshot = "100022\t20200731\t1\t900000000000207008\t322236009\t38112003\t1\t766952006\t900000000000011006\t900000000000451002\r\n" +
+			"100023\t20200731\t1\t900000000000207008\t322236010\t3445001\t1\t766952006\t900000000000011006\t900000000000451002\r\n" +
+			"100024\t20200731\t1\t900000000000207008\t322236009\t38112003\t1\t766952006\t900000000000010007\t900000000000451002\r\n" +
+			"100025\t20200731\t1\t900000000000207008\t322236009\t38112003\t1\t411116001\t900000000000011006\t900000000000451002\r\n" +
+			"100026\t20200731\t1\t900000000000207008\t322236009\t38112003\t2\t766952006\t900000000000011006\t900000000000451002\r\n" +
+			"1000x8\t20200731\t1\t900000000000207008\t322236009\t38112003\t1\t766952006\t900000000000011006\t900000000000451002\r\n";
+	static final String delta = "100026\t\t0\t900000000000207008\t322236009\t38112003\t2\t766952006\t900000000000011006\t900000000000451002\r\n" +
+			"100027\t\t1\t900000000000207008\t322236009\t38112003\t3\t766952006\t900000000000011006\t900000000000451002\r\n";
+
+	/**
+	 * Only active inferred relationships of a mapped type with a number as their target change,
+	 * and rows held back from a delta are written whether they change or not.  Rows whose id
+	 * isn't an SCTID are left alone.
+	 */
+	public void testChanges() throws IOException
+	{
+		SctidMap<String> attributeTypeMap = new SctidMap<>();
+		attributeTypeMap.put(766952006L, "3264479001");
+		SctidMap<String> conceptNumberMap = new SctidMap<>();
+		conceptNumberMap.put(38112003L, "1");
+
+		InferredRelationshipChanges changes = new InferredRelationshipChanges(attributeTypeMap);
+		changes.putAll(collect(attributeTypeMap, snapshot, false));
+		changes.putAll(collect(attributeTypeMap, delta, true));
+		assertEquals(4, changes.size());
+
+		List<String[]> relationships = new ArrayList<>();
+		List<String[]> concreteValues = new ArrayList<>();
+		changes.write(conceptNumberMap, relationships::add, concreteValues::add);
+		assertEquals(2, changes.getInactivated());
+		assertEquals(3, relationships.size());
+		//100026 was already inactive in the delta, so it's written as it was
+		assertEquals("100022||0", relationships.get(0)[0] + "|" + relationships.get(0)[1] + "|" + relationships.get(0)[2]);
+		assertEquals("100026||0", relationships.get(1)[0] + "|" + relationships.get(1)[1] + "|" + relationships.get(1)[2]);
+		assertEquals("100027||0", relationships.get(2)[0] + "|" + relationships.get(2)[1] + "|" + relationships.get(2)[2]);
+		assertEquals(2, concreteValues.size());
+		assertEquals("\t\t1\t900000000000207008\t322236009\t#1\t1\t3264479001\t900000000000011006\t900000000000451002",
+				String.join("\t", concreteValues.get(0)).substring(36));
+		assertEquals("3", concreteValues.get(1)[6]);
+	}
+
+	/**
+	 * A concept with any number lacking a value is left as it is, as its stated axiom would be,
+	 * rather than having some of its relationships replaced and not others
+	 */
+	public void testConceptMissingValue() throws IOException
+	{
+		SctidMap<String> attributeTypeMap = new SctidMap<>();
+		attributeTypeMap.put(766952006L, "3264479001");
+		attributeTypeMap.put(732944001L, "3264475007");
+		SctidMap<String> conceptNumberMap = new SctidMap<>();
+		conceptNumberMap.put(38112003L, "1");
+		String rows = "100031\t20200731\t1\t900000000000207008\t322236011\t38112003\t1\t766952006\t900000000000011006\t900000000000451002\r\n" +
+				"100032\t20200731\t1\t900000000000207008\t322236011\t3445001\t1\t732944001\t900000000000011006\t900000000000451002\r\n" +
+				//An inactive relationship without a value doesn't hold its concept back
+				"100033\t20200731\t0\t900000000000207008\t322236012\t3445001\t1\t732944001\t900000000000011006\t900000000000451002\r\n" +
+				"100034\t20200731\t1\t900000000000207008\t322236012\t38112003\t1\t766952006\t900000000000011006\t900000000000451002\r\n";
+
+		InferredRelationshipChanges changes = new InferredRelationshipChanges(attributeTypeMap);
+		changes.putAll(collect(attributeTypeMap, rows, true));
+		List<String[]> relationships = new ArrayList<>();
+		List<String[]> concreteValues = new ArrayList<>();
+		changes.write(conceptNumberMap, relationships::add, concreteValues::add);
+		assertEquals(1, changes.getInactivated());
+		assertEquals(1, changes.getConceptsSkipped());
+		List<String> written = new ArrayList<>();
+		for (String[] fields : relationships) {
+			written.add(fields[0] + "|" + fields[2]);
+		}
+		assertEquals(Arrays.asList("100031|1", "100032|1", "100033|0", "100034|0"), written);
+		assertEquals(1, concreteValues.size());
+		assertEquals("322236012", concreteValues.get(0)[4]);
+	}
+
+	private InferredRelationshipChanges collect(SctidMap<String> attributeTypeMap, String rows, boolean held) throws IOException
+	{
+		InferredRelationshipChanges changes = new InferredRelationshipChanges(attributeTypeMap);
+		ArchiveLines lines = new ArchiveLines(new ByteArrayInputStream(rows.getBytes(StandardCharsets.UTF_8)));
+		while (lines.next()) {
+			if (changes.isCandidate(lines)) {
+				changes.add(lines, held);
+			}
+		}
+		return changes;
+	}
+}
@@ -0,0 +1,61 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import junit.framework.*;
+
+public class MappedRF2FileTest extends TestCase
+{
+	/**
+	 * Rows should read the same however small the mapped regions, and whichever
+	 * ranges the file is split into
+	 */
+	public void testRegionsAndRanges() throws IOException
+	{
+		File file = File.createTempFile("cd-mapped-", ".txt");
+		try {
+			StringBuilder content = new StringBuilder("id\teffectiveTime\tactive\r\n");
+			for (int i = 0; i < 100; i++) {
+				content.append(100000 + i).append("\t20200731\t").append(i % 2).append(i % 7 == 0 ? "\t€" : "").append("\r\n");
+			}
+			content.append("100100\t\t1");  //No terminator on the last line
+			Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+			List<String> expected = readRows(new ByteArrayInputStream(content.toString().getBytes(StandardCharsets.UTF_8)));
+			assertEquals(102, expected.size());
+
+			MappedRF2File mapped = new MappedRF2File(file.toPath(), 7);
+			assertEquals(expected, readRows(mapped.open()));
+
+			for (int parts : new int[] { 1, 3, 8, 500 }) {
+				long[] offsets = mapped.split(parts);
+				assertEquals(0, offsets[0]);
+				assertEquals(mapped.size(), offsets[offsets.length - 1]);
+				assertTrue(offsets.length - 1 <= parts);
+				List<String> rows = new ArrayList<>();
+				for (int i = 0; i + 1 < offsets.length; i++) {
+					assertTrue(offsets[i] < offsets[i + 1]);
+					rows.addAll(readRows(mapped.open(offsets[i], offsets[i + 1])));
+				}
+				assertEquals("Split into " + parts, expected, rows);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private List<String> readRows(InputStream is) throws IOException
+	{
+		List<String> rows = new ArrayList<>();
+		try {
+			for (String[] fields : new ArchiveLines(is)) {
+				rows.add(String.join("|", fields));
+			}
+		} finally {
+			is.close();
+		}
+		return rows;
+	}
+}
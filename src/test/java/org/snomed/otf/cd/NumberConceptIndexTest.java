@@ -0,0 +1,84 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import junit.framework.*;
+
+public class NumberConceptIndexTest extends TestCase
+{
+	/**
+	 * What's saved should load back the same, and saving again should replace it whole
+	 */
+	public void testSaveAndLoad() throws IOException
+	{
+		File dir = Files.createTempDirectory("cd-index-").toFile();
+		try {
+			File file = new File(new File(dir, "index"), "number-concepts.idx");
+			assertNull(NumberConceptIndex.load(file));
+
+			NumberConceptIndex index = new NumberConceptIndex();
+			index.addNumberConcept(38112003L);
+			index.addNumberConcept(732775002L);
+			index.addNumericTerm(38112003L, "1");
+			index.addNumericTerm(732775002L, "500 µg");
+			index.save(file);
+			assertFalse(new File(file.getPath() + ".tmp").exists());
+
+			NumberConceptIndex loaded = NumberConceptIndex.load(file);
+			assertEquals(sorted(index.getNumberConcepts()), sorted(loaded.getNumberConcepts()));
+			assertEquals(sorted(index.getNumericTermConcepts()), sorted(loaded.getNumericTermConcepts()));
+			assertEquals("500 µg", loaded.getNumericTerm(732775002L));
+
+			NumberConceptIndex replacement = new NumberConceptIndex();
+			replacement.addNumberConcept(3445001L);
+			replacement.save(file);
+			loaded = NumberConceptIndex.load(file);
+			assertEquals("[3445001]", sorted(loaded.getNumberConcepts()));
+			assertEquals(0, loaded.getNumericTermConcepts().length);
+
+			//An index written by another version of the format is ignored
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+				out.writeInt(-1);
+			}
+			assertNull(NumberConceptIndex.load(file));
+		} finally {
+			SyntheticReleases.delete(dir);
+		}
+	}
+
+	/**
+	 * A snapshot that's changed since the index was saved gets a new key, so is scanned again
+	 * and converted just as it would be without the index
+	 */
+	public void testChangedArchiveRescanned() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File indexDir = releases.file("index");
+			File snapshot = releases.snapshot();
+			String key = NumberConceptIndex.archiveKey(snapshot, null);
+			assertEquals(key, NumberConceptIndex.archiveKey(snapshot));
+			releases.convert("first.zip", "-s", snapshot.getPath(), "-i", indexDir.getPath());
+			assertEquals(1, indexDir.list().length);
+			File reused = releases.convert("reused.zip", "-s", snapshot.getPath(), "-i", indexDir.getPath());
+			assertEquals(1, indexDir.list().length);
+			assertEquals(SyntheticReleases.readEntries(releases.file("first.zip")), SyntheticReleases.readEntries(reused));
+
+			releases.generator.setSize(1200, 0.5);
+			snapshot = releases.snapshot();
+			assertFalse(key.equals(NumberConceptIndex.archiveKey(snapshot)));
+			File rescanned = releases.convert("rescanned.zip", "-s", snapshot.getPath(), "-i", indexDir.getPath());
+			assertEquals(2, indexDir.list().length);
+			File unindexed = releases.convert("unindexed.zip", "-s", snapshot.getPath());
+			assertEquals(SyntheticReleases.readEntries(unindexed), SyntheticReleases.readEntries(rescanned));
+		}
+	}
+
+	private String sorted(long[] values)
+	{
+		long[] copy = values.clone();
+		Arrays.sort(copy);
+		return Arrays.toString(copy);
+	}
+}
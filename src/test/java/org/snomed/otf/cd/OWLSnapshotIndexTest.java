@@ -0,0 +1,232 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class OWLSnapshotIndexTest extends TestCase
+{
+	private static final String HEADER = "id\teffectiveTime\tactive\tmoduleId\trefsetId\treferencedComponentId\towlExpression";
+	private static final String U1 = "5e7a0000-0000-4000-0000-000000000001";
+	private static final String U2 = "5e7a0000-0000-4000-0000-000000000002";
+	private static final String U3 = "5e7a0000-0000-4000-0000-000000000003";
+	private static final String U4 = "5e7a0000-0000-4000-0000-000000000004";
+	private static final String NOT_A_UUID = "not-a-uuid";
+
+	/**
+	 * Only the latest version of each row should be extracted, and found by the values its active
+	 * axiom uses, by its referenced component, or by its member id
+	 */
+	public void testBuildAndFind() throws IOException
+	{
+		File dir = Files.createTempDirectory("cd-owl-index-").toFile();
+		try {
+			Path snapshot = write(new File(dir, "snapshot.txt"),
+					row(U1, "1", "100001", "500 600"),
+					row(U2, "0", "100002", "500"),
+					row(U3, "1", "100001", "700"),
+					row(NOT_A_UUID, "1", "100003", "800"));
+			Path extension = write(new File(dir, "extension.txt"),
+					row(U3, "0", "100001", "700"),
+					row(U4, "1", "100004", "600"));
+			File indexDir = new File(dir, "index");
+			OWLSnapshotIndex index = OWLSnapshotIndex.build(indexDir, "key", Arrays.asList(snapshot, extension), OWLSnapshotIndexTest::values);
+
+			//The extension is read first, and supersedes the snapshot's row.  Rows are found in file order
+			assertEquals(Arrays.asList(U3 + "|0", U4 + "|1", U1 + "|1", U2 + "|0", NOT_A_UUID + "|1"), readIds(index, allRows(index)));
+			assertEquals(Arrays.asList(U4, U1), ids(index, index.findRowsUsing(new long[] { 600 })));
+			assertEquals(Arrays.asList(U1), ids(index, index.findRowsUsing(new long[] { 500 })));
+			assertEquals(Arrays.asList(), ids(index, index.findRowsUsing(new long[] { 700 })));
+			assertEquals(Arrays.asList(NOT_A_UUID), ids(index, index.findRowsUsing(new long[] { 800, 900 })));
+			assertEquals(Arrays.asList(U3, U1), ids(index, index.findRowsFor(new long[] { 100001 })));
+			assertEquals(Arrays.asList(U3, U1, U2), ids(index, index.findRowsFor(new long[] { 100002, 100001, 100005 })));
+			assertEquals(Arrays.asList(U4), ids(index, new long[] { index.findRow(U4) }));
+			assertEquals(-1, index.findRow("5e7a0000-0000-4000-0000-000000000005"));
+			assertEquals(-1, index.findRow(NOT_A_UUID));
+			//Rows come back in the order asked for
+			long[] reversed = new long[] { index.findRow(U2), index.findRow(U4) };
+			assertEquals(Arrays.asList(U2, U4), ids(index, reversed));
+
+			//Version and rows file length, then the size of each sorted section: values, components and ids
+			File indexFile = new File(indexDir, "owl-snapshot-key.idx");
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+				assertEquals(2, in.readLong());
+				assertEquals(index.getRowsFile().length(), in.readLong());
+				long[] counts = new long[] { in.readLong(), in.readLong(), in.readLong() };
+				assertEquals("[4, 5, 4]", Arrays.toString(counts));
+				for (int section = 0; section < counts.length; section++) {
+					int keyWidth = section == 2 ? 2 : 1;
+					long[] previous = null;
+					for (int i = 0; i < counts[section]; i++) {
+						long[] key = new long[keyWidth];
+						for (int k = 0; k < keyWidth; k++) {
+							key[k] = in.readLong();
+						}
+						in.readLong();
+						if (previous != null) {
+							assertTrue("Section " + section, compare(previous, key) <= 0);
+						}
+						previous = key;
+					}
+				}
+				assertEquals(-1, in.read());
+			}
+
+			assertEquals(readIds(index, allRows(index)), readIds(OWLSnapshotIndex.load(indexDir, "key"), allRows(index)));
+			assertNull(OWLSnapshotIndex.load(indexDir, "other"));
+			//Rows that don't match the index are not used
+			Files.write(index.getRowsFile().toPath(), new byte[] { '\n' }, StandardOpenOption.APPEND);
+			assertNull(OWLSnapshotIndex.load(indexDir, "key"));
+		} finally {
+			SyntheticReleases.delete(dir);
+		}
+	}
+
+	/**
+	 * -a should convert the delta along with just those snapshot axioms using number concepts it
+	 * changes, each as a full conversion would, and give the same again from the saved index
+	 */
+	public void testAffectedAxioms() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File delta = releases.delta();
+			String indexDir = releases.file("index").getPath();
+			List<String> full = owlRows(releases.convert("full.zip", "-s", snapshot.getPath(), "-d", delta.getPath()));
+			File affected = releases.convert("affected.zip", "-s", snapshot.getPath(), "-d", delta.getPath(), "-i", indexDir, "-a");
+			List<String> affectedRows = owlRows(affected);
+			assertTrue(affectedRows.size() > 1);
+			assertTrue(affectedRows.size() < full.size());
+			assertTrue(new HashSet<>(full).containsAll(affectedRows));
+
+			File reused = releases.convert("reused.zip", "-s", snapshot.getPath(), "-d", delta.getPath(), "-i", indexDir, "-a");
+			assertEquals(SyntheticReleases.readEntries(affected), SyntheticReleases.readEntries(reused));
+		}
+	}
+
+	/**
+	 * -r should convert the axioms of the concepts and members chosen and no others
+	 */
+	public void testSelectedAxioms() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File indexDir = releases.file("index");
+			List<String> full = owlRows(releases.convert("full.zip", "-s", snapshot.getPath()));
+			String[] concept = full.get(1).split(CdConversion.FIELD_DELIMITER);
+			String[] member = full.get(full.size() - 1).split(CdConversion.FIELD_DELIMITER);
+			String selection = concept[CdConversion.IDX_REFCOMPID] + "," + member[CdConversion.IDX_ID];
+			List<String> expected = new ArrayList<>();
+			expected.add(full.get(0));
+			for (String row : full.subList(1, full.size())) {
+				String[] fields = row.split(CdConversion.FIELD_DELIMITER);
+				if (fields[CdConversion.IDX_REFCOMPID].equals(concept[CdConversion.IDX_REFCOMPID]) || fields[CdConversion.IDX_ID].equals(member[CdConversion.IDX_ID])) {
+					expected.add(row);
+				}
+			}
+			File selected = releases.convert("selected.zip", "-s", snapshot.getPath(), "-i", indexDir.getPath(), "-r", selection);
+			assertEquals(expected, owlRows(selected));
+			assertEquals(1, owlIndexes(indexDir));
+			File reused = releases.convert("reused.zip", "-s", snapshot.getPath(), "-i", indexDir.getPath(), "-r", selection);
+			assertEquals(expected, owlRows(reused));
+			assertEquals(1, owlIndexes(indexDir));
+		}
+	}
+
+	/**
+	 * The index is saved against the attribute types mapped, so a change to them means it's built again
+	 */
+	public void testAttributeTypesKey()
+	{
+		String key = CdConversion.attributeTypesKey(new long[] { 732944001, 732946004, 766952006 });
+		assertEquals(key, CdConversion.attributeTypesKey(new long[] { 766952006, 732944001, 732946004 }));
+		assertFalse(key.equals(CdConversion.attributeTypesKey(new long[] { 732944001, 732946004 })));
+		assertFalse(key.equals(CdConversion.attributeTypesKey(new long[] { 732944001, 732946004, 766953001 })));
+	}
+
+	private static long[] values(String expression)
+	{
+		String[] values = expression.split(" ");
+		long[] concepts = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			concepts[i] = Long.parseLong(values[i]);
+		}
+		return concepts;
+	}
+
+	private static String row(String id, String active, String component, String expression)
+	{
+		return String.join(CdConversion.FIELD_DELIMITER, id, "20210131", active, "900000000000207008", "733073007", component, expression);
+	}
+
+	private static Path write(File file, String... rows) throws IOException
+	{
+		StringBuilder content = new StringBuilder(HEADER).append(CdConversion.LINE_DELIMITER);
+		for (String row : rows) {
+			content.append(row).append(CdConversion.LINE_DELIMITER);
+		}
+		Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+		return file.toPath();
+	}
+
+	private static long[] allRows(OWLSnapshotIndex index) throws IOException
+	{
+		List<Long> offsets = new ArrayList<>();
+		byte[] rows = Files.readAllBytes(index.getRowsFile().toPath());
+		for (int i = 0; i < rows.length; i++) {
+			if (i == 0 || rows[i - 1] == '\n') {
+				offsets.add((long) i);
+			}
+		}
+		long[] all = new long[offsets.size()];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = offsets.get(i);
+		}
+		return all;
+	}
+
+	private static List<String> ids(OWLSnapshotIndex index, long[] offsets) throws IOException
+	{
+		List<String> ids = new ArrayList<>();
+		index.readRows(offsets, fields -> ids.add(fields[CdConversion.IDX_ID]));
+		return ids;
+	}
+
+	private static List<String> readIds(OWLSnapshotIndex index, long[] offsets) throws IOException
+	{
+		List<String> ids = new ArrayList<>();
+		index.readRows(offsets, fields -> ids.add(fields[CdConversion.IDX_ID] + "|" + fields[CdConversion.IDX_ACTIVE]));
+		return ids;
+	}
+
+	private static int compare(long[] a, long[] b)
+	{
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				return Long.compare(a[i], b[i]);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the rows of the converted OWL file, header first, then sorted
+	 */
+	private static List<String> owlRows(File archive) throws IOException
+	{
+		for (Map.Entry<String, List<String>> entry : SyntheticReleases.readSortedEntries(archive).entrySet()) {
+			if (entry.getKey().contains(CdConversion.OWL_PREFIX)) {
+				return entry.getValue();
+			}
+		}
+		throw new AssertionFailedError("No OWL file in " + archive);
+	}
+
+	private static int owlIndexes(File indexDir)
+	{
+		return indexDir.list((dir, name) -> name.startsWith("owl-snapshot-") && name.endsWith(".idx")).length;
+	}
+}
@@ -0,0 +1,128 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.*;
+
+public class RF2ArchiverTest extends TestCase
+{
+	private static final String CONCEPT = "output/SnomedCT/Snapshot/Terminology/sct2_Concept_Snapshot_INT_20200731.txt";
+	private static final String OWL = "output/SnomedCT/Snapshot/Terminology/sct2_sRefset_OWLExpressionSnapshot_INT_20200731.txt";
+	private static final String LANGUAGE = "output/SnomedCT/Snapshot/Refset/Language/der2_cRefset_LanguageSnapshot-en_INT_20200731.txt";
+
+	/**
+	 * Rows written to the entries in turn should come out of each archive whole, read either
+	 * through the central directory or by streaming the local headers
+	 */
+	public void testEntriesWritten() throws IOException
+	{
+		File dir = Files.createTempDirectory("cd-archiver-").toFile();
+		try {
+			File all = new File(dir, "all.zip");
+			File classification = new File(dir, "classification.zip");
+			Map<String, List<String>> expected = new TreeMap<>();
+			try (RF2Archiver archiver = new RF2Archiver()) {
+				archiver.addArchive(all, null);
+				archiver.addArchive(classification, RF2Archiver.CLASSIFICATION_FILTER);
+				Map<String, RF2FileWriter> writers = new LinkedHashMap<>();
+				for (String name : new String[] { OWL, LANGUAGE, CONCEPT }) {
+					writers.put(name, new RF2FileWriter(archiver.newEntry(name)));
+					expected.put(name, new ArrayList<>());
+				}
+				//Enough rows, added to by turns, to need more than one buffer of each
+				for (int i = 0; i < 20000; i++) {
+					for (Map.Entry<String, RF2FileWriter> entry : writers.entrySet()) {
+						String[] row = new String[] { Integer.toString(100000 + i), "20200731", "1", entry.getKey().substring(i % 40) };
+						entry.getValue().writeRow(row);
+						expected.get(entry.getKey()).add(String.join("\t", row));
+					}
+				}
+				for (RF2FileWriter writer : writers.values()) {
+					writer.close();
+				}
+				archiver.write();
+			}
+
+			assertEquals(expected, SyntheticReleases.readEntries(all));
+			assertEquals(expected, readStreamed(all));
+			expected.remove(LANGUAGE);
+			assertEquals(expected, SyntheticReleases.readEntries(classification));
+			assertEquals(expected, readStreamed(classification));
+			assertEquals(2, dir.list().length);
+		} finally {
+			SyntheticReleases.delete(dir);
+		}
+	}
+
+	/**
+	 * An archive should only be given the files it takes
+	 */
+	public void testNoEntryWanted() throws IOException
+	{
+		try (RF2Archiver archiver = new RF2Archiver()) {
+			archiver.addArchive(new File("unused.zip"), "*Concept*");
+			assertNull(archiver.newEntry(LANGUAGE));
+			assertTrue(archiver.newEntry(CONCEPT).isOpen());
+		}
+	}
+
+	/**
+	 * -z should archive every file of the output folder, -zc the files the classification filter,
+	 * or -zf, selects from them, and both should hold the same rows
+	 */
+	public void testArchiveOptions() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(1000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File classification = releases.file("classification.zip");
+			File all = releases.convert("all.zip", "-s", snapshot.getPath(), "-zc", classification.getPath());
+			Map<String, List<String>> entries = SyntheticReleases.readEntries(all);
+			assertFalse(entries.isEmpty());
+			Map<String, List<String>> classified = new TreeMap<>();
+			Map<String, List<String>> owl = new TreeMap<>();
+			int rows = 0;
+			for (Map.Entry<String, List<String>> entry : entries.entrySet()) {
+				String name = entry.getKey();
+				assertTrue(name, name.startsWith(CdConversion.OUTPUT_DIR + "/SnomedCT"));
+				assertTrue(name, entry.getValue().get(0).startsWith("id\t"));
+				String fileName = name.substring(name.lastIndexOf('/') + 1);
+				if (fileName.contains("Concept") || fileName.contains("_Relationship") || fileName.contains("OWL")) {
+					classified.put(name, entry.getValue());
+				}
+				if (fileName.contains("OWLExpression")) {
+					owl.put(name, entry.getValue());
+					rows += entry.getValue().size() - 1;
+				}
+			}
+			assertTrue(rows > 0);
+			assertTrue(classified.size() < entries.size());
+			assertEquals(classified, SyntheticReleases.readEntries(classification));
+			assertEquals(entries, readStreamed(all));
+
+			File filtered = releases.file("filtered.zip");
+			releases.convert("unfiltered.zip", "-s", snapshot.getPath(), "-zc", filtered.getPath(), "-zf", "*OWLExpression*");
+			assertEquals(owl, SyntheticReleases.readEntries(filtered));
+		}
+	}
+
+	private static Map<String, List<String>> readStreamed(File archive) throws IOException
+	{
+		Map<String, List<String>> entries = new TreeMap<>();
+		try (ZipInputStream zis = new ZipInputStream(new FileInputStream(archive))) {
+			ZipEntry ze;
+			while ((ze = zis.getNextEntry()) != null) {
+				entries.put(ze.getName(), SyntheticReleases.readLines(new FilterInputStream(zis) {
+					@Override
+					public void close() {
+						//The stream goes on to the next entry
+					}
+				}));
+			}
+		}
+		return entries;
+	}
+}
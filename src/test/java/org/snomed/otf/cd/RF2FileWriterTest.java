@@ -0,0 +1,36 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.*;
+
+public class RF2FileWriterTest extends TestCase
+{
+	/**
+	 * Rows should come out byte for byte as the UTF-8 encoder would have written them
+	 */
+	public void testEncoding() throws IOException
+	{
+		File file = File.createTempFile("cd-writer-", ".txt");
+		try {
+			String[] row = new String[] { "100022", null, "1", "Größe µg", "€ 5", "💊", "\uD800" };
+			byte[] line = "100023\t\t0\t\t".getBytes(StandardCharsets.UTF_8);
+			char[] longField = new char[RF2FileWriter.BUFFER_SIZE];
+			Arrays.fill(longField, 'é');
+			try (RF2FileWriter writer = new RF2FileWriter(file.toPath())) {
+				writer.writeRow(row);
+				writer.writeLine(line, 0, line.length);
+				writer.writeRow(new String[] { new String(longField) });
+			}
+			String expected = "100022\t\t1\tGröße µg\t€ 5\t💊\t?\r\n" +
+					"100023\t\t0\t\t\r\n" +
+					new String(longField) + "\r\n";
+			assertTrue(Arrays.equals(expected.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(file.toPath())));
+		} finally {
+			file.delete();
+		}
+	}
+}
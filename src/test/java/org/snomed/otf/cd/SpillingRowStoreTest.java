@@ -0,0 +1,83 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class SpillingRowStoreTest extends TestCase
+{
+	/**
+	 * Rows put, replaced and removed either side of a spill should come back as the latest
+	 * of each, once only and in id order
+	 */
+	public void testSpilledRowsSuperseded() throws IOException
+	{
+		try (SpillingRowStore store = new SpillingRowStore(1)) {
+			store.put("b", row("b", "1"));
+			store.put("a", row("a", "1"));
+			store.put("c", row("c", "1"));
+			assertEquals(3, store.getRunCount());
+			//Replaced in a later run, removed after being spilled, and put back again
+			store.put("b", row("b", "2"));
+			store.remove("c");
+			assertFalse(store.containsKey("c"));
+			store.put("d", row("d", "1"));
+			store.remove("d");
+			store.put("d", row("d", "2"));
+			assertEquals(3, store.size());
+			assertEquals(Arrays.asList("a|1", "b|2", "d|2"), writeAll(store));
+		}
+	}
+
+	/**
+	 * The same operations should give the same rows whatever the budget, including rows
+	 * still held in memory alongside older copies in the runs, and runs merged together
+	 */
+	public void testAgainstMemory() throws IOException
+	{
+		Random random = new Random(42);
+		List<String[]> operations = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			String id = "id" + random.nextInt(300);
+			operations.add(random.nextInt(5) == 0 ? new String[] { id } : row(id, Integer.toString(i)));
+		}
+		TreeMap<String, String> expected = new TreeMap<>();
+		for (String[] operation : operations) {
+			if (operation.length == 1) {
+				expected.remove(operation[0]);
+			} else {
+				expected.put(operation[0], operation[0] + "|" + operation[CdConversion.IDX_OWL_EXPRESSION]);
+			}
+		}
+
+		for (long budget : new long[] { 1, 2000, 50000, Long.MAX_VALUE }) {
+			try (SpillingRowStore store = new SpillingRowStore(budget)) {
+				for (String[] operation : operations) {
+					if (operation.length == 1) {
+						store.remove(operation[0]);
+					} else {
+						store.put(operation[0], operation);
+					}
+				}
+				assertEquals(budget == Long.MAX_VALUE, store.getRunCount() == 0);
+				//However many times they're spilled, there are never too many runs to merge at once
+				assertTrue(store.getRunCount() < SpillingRowStore.MAX_RUNS);
+				assertEquals(expected.size(), store.size());
+				assertEquals("Budget " + budget, new ArrayList<>(expected.values()), writeAll(store));
+			}
+		}
+	}
+
+	private static String[] row(String id, String owl)
+	{
+		return new String[] { id, "", "1", "900000000000207008", "733073007", "322236009", owl };
+	}
+
+	private static List<String> writeAll(SpillingRowStore store) throws IOException
+	{
+		List<String> rows = new ArrayList<>();
+		store.writeAll(fields -> rows.add(fields[CdConversion.IDX_ID] + "|" + fields[CdConversion.IDX_OWL_EXPRESSION]));
+		return rows;
+	}
+}
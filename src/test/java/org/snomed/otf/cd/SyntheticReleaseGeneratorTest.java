@@ -0,0 +1,48 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import junit.framework.*;
+
+public class SyntheticReleaseGeneratorTest extends TestCase
+{
+	/**
+	 * A small release and delta, run through the conversion end to end
+	 */
+	public void testGeneratedReleaseConverts() throws IOException
+	{
+		try (SyntheticReleases releases = new SyntheticReleases(2000, 0.5)) {
+			File snapshot = releases.snapshot();
+			File delta = releases.delta();
+			File output = releases.convert("output.zip", "-s", snapshot.getPath(), "-d", delta.getPath());
+
+			List<String> attributeTypes = new ArrayList<>();
+			for (String line : Files.readAllLines(new File("config.txt").toPath())) {
+				attributeTypes.add(line.split(CdConversion.FIELD_DELIMITER)[0]);
+			}
+			AttributeFilter filter = new AttributeFilter(attributeTypes);
+			int converted = 0;
+			try (ZipFile zip = new ZipFile(output)) {
+				for (ZipEntry ze : Collections.list(zip.entries())) {
+					if (!ze.getName().contains(CdConversion.OWL_PREFIX)) {
+						continue;
+					}
+					for (String[] fields : new ArchiveLines(zip.getInputStream(ze))) {
+						//Every number has a value, so nothing active should be left to convert
+						if (fields[CdConversion.IDX_ACTIVE].equals("1")) {
+							assertFalse(fields[CdConversion.IDX_OWL_EXPRESSION], filter.isCandidate(fields[CdConversion.IDX_OWL_EXPRESSION]));
+						}
+						if (fields[CdConversion.IDX_OWL_EXPRESSION].contains("DataHasValue")) {
+							converted++;
+						}
+					}
+				}
+			}
+			assertTrue(converted > 500);
+		}
+	}
+}
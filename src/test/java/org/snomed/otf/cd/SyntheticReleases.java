@@ -0,0 +1,161 @@
+package org.snomed.otf.cd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Small generated releases for the end to end tests, which are converted with CdConversion.main
+ * and compared by the contents of the archives written
+ */
+class SyntheticReleases implements Closeable
+{
+	final File dir;
+	final SyntheticReleaseGenerator generator = new SyntheticReleaseGenerator();
+
+	SyntheticReleases (int conceptCount, double mappedDensity) throws IOException
+	{
+		dir = Files.createTempDirectory("cd-synthetic-").toFile();
+		generator.loadConfig(new File("config.txt"));
+		generator.setSize(conceptCount, mappedDensity);
+	}
+
+	File snapshot() throws IOException
+	{
+		File snapshot = file("snapshot.zip");
+		generator.writeSnapshot(snapshot);
+		return snapshot;
+	}
+
+	File extension() throws IOException
+	{
+		return extension("extension.zip");
+	}
+
+	File extension(String name) throws IOException
+	{
+		File extension = file(name);
+		generator.writeExtension(extension);
+		return extension;
+	}
+
+	File delta() throws IOException
+	{
+		File delta = file("delta.zip");
+		generator.writeDelta(delta);
+		return delta;
+	}
+
+	File file(String name)
+	{
+		return new File(dir, name);
+	}
+
+	/**
+	 * Runs the conversion with the given arguments, writing its output to the named archive
+	 */
+	File convert(String outputName, String... args) throws IOException
+	{
+		File output = file(outputName);
+		String[] withOutput = Arrays.copyOf(args, args.length + 2);
+		withOutput[args.length] = "-z";
+		withOutput[args.length + 1] = output.getPath();
+		CdConversion.main(withOutput);
+		return output;
+	}
+
+	/**
+	 * @return the lines of each file in the archive, by entry name
+	 */
+	static Map<String, List<String>> readEntries(File archive) throws IOException
+	{
+		Map<String, List<String>> entries = new TreeMap<>();
+		try (ZipFile zip = new ZipFile(archive)) {
+			for (ZipEntry ze : Collections.list(zip.entries())) {
+				if (!ze.isDirectory()) {
+					entries.put(ze.getName(), readLines(zip.getInputStream(ze)));
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the lines of each file in the folder, by its path within it as an archive would name it
+	 */
+	static Map<String, List<String>> readFiles(File dir) throws IOException
+	{
+		Map<String, List<String>> files = new TreeMap<>();
+		Path root = dir.toPath();
+		try (Stream<Path> walk = Files.walk(root)) {
+			for (Path path : walk.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				files.put(root.relativize(path).toString().replace(File.separatorChar, '/'), readLines(Files.newInputStream(path)));
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @return the same, with the rows of each file after its header sorted, for output whose order may differ
+	 */
+	static Map<String, List<String>> readSortedEntries(File archive) throws IOException
+	{
+		Map<String, List<String>> entries = readEntries(archive);
+		for (List<String> lines : entries.values()) {
+			if (lines.size() > 1) {
+				Collections.sort(lines.subList(1, lines.size()));
+			}
+		}
+		return entries;
+	}
+
+	static List<String> readLines(InputStream is) throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	static byte[] readAll(InputStream is) throws IOException
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Override
+	public void close()
+	{
+		delete(dir);
+	}
+}